@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * AdaptivePoolSizer is a background thread that resizes a BufferPool to keep
+ * its hit ratio near a target.
+ * <p>
+ * Every interval it looks at the hits and misses since the last look. If the
+ * hit ratio is below the target the pool grows by a step; if it is well above
+ * the target the pool gives a step back, so the memory can be used by other
+ * caches of the process. Intervals with too few page requests are ignored.
+ *
+ * @see BufferPool#enableAdaptiveSizing
+ */
+public class AdaptivePoolSizer extends Thread {
+    /** Fraction of the current size added or removed in one step. */
+    private static final double STEP_FRACTION = 0.1;
+    /** How far above the target the hit ratio must be before shrinking. */
+    private static final double SHRINK_MARGIN = 0.05;
+    /** Page requests needed in an interval for its hit ratio to count. */
+    private static final long MIN_SAMPLE = 100;
+
+    private final BufferPool bufferPool;
+    private final double targetHitRatio;
+    private final int minPages;
+    private final int maxPages;
+    private final long intervalMillis;
+    private volatile boolean running;
+
+    private long lastHits;
+    private long lastMisses;
+
+    /**
+     * @param bufferPool the pool to resize
+     * @param targetHitRatio hit ratio to aim for, between 0 and 1
+     * @param minPages lower bound on the pool size
+     * @param maxPages upper bound on the pool size
+     * @param intervalMillis time between two resizing decisions
+     */
+    public AdaptivePoolSizer(BufferPool bufferPool, double targetHitRatio, int minPages,
+                             int maxPages, long intervalMillis) {
+        super("AdaptivePoolSizer");
+        if (minPages <= 0 || minPages > maxPages)
+            throw new IllegalArgumentException("invalid page range " + minPages + ".." + maxPages);
+        if (targetHitRatio <= 0 || targetHitRatio > 1)
+            throw new IllegalArgumentException("hit ratio target must be in (0, 1]");
+        this.bufferPool = bufferPool;
+        this.targetHitRatio = targetHitRatio;
+        this.minPages = minPages;
+        this.maxPages = maxPages;
+        this.intervalMillis = intervalMillis;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    /** Stop resizing; the pool keeps its current size. */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    /**
+     * Decide on the new size of the pool from the hit ratio seen since the
+     * previous call.
+     * @return the new size, or the current size if nothing should change
+     */
+    int nextSize() {
+        long hits = bufferPool.getHits();
+        long misses = bufferPool.getMisses();
+        long newHits = hits - lastHits;
+        long newMisses = misses - lastMisses;
+        int current = bufferPool.getMaxPages();
+        if (newHits < 0 || newMisses < 0) {
+            // the pool statistics were reset, start over from there
+            lastHits = hits;
+            lastMisses = misses;
+            return current;
+        }
+        if (newHits + newMisses < MIN_SAMPLE)
+            return current;
+        lastHits = hits;
+        lastMisses = misses;
+
+        double hitRatio = (double) newHits / (newHits + newMisses);
+        int step = Math.max(1, (int) (current * STEP_FRACTION));
+        if (hitRatio < targetHitRatio)
+            return Math.min(maxPages, current + step);
+        if (hitRatio > targetHitRatio + SHRINK_MARGIN)
+            return Math.max(minPages, current - step);
+        return current;
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (!running)
+                break;
+            int size = nextSize();
+            if (size != bufferPool.getMaxPages()) {
+                Debug.log("AdaptivePoolSizer resizing buffer pool to %d pages", size);
+                try {
+                    bufferPool.resize(size);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * AdmissionController caps the number of transactions running at once, so
+ * that lock thrashing under overload levels throughput off instead of
+ * collapsing it.
+ * <p>
+ * Transaction.start waits here while the cap is reached, and the waiting
+ * transactions are admitted in arrival order. The cap adapts to the
+ * outcome of the transactions (additive increase, multiplicative decrease):
+ * after every window of completions it is halved if too many of them
+ * aborted or too many running transactions are blocked on locks, otherwise
+ * it grows by one, up to the configured maximum.
+ * <p>
+ * Read-only transactions read a snapshot without locks and are not counted.
+ * See {@link #execute} for running a transaction with retries and backoff.
+ *
+ * @Threadsafe
+ */
+public class AdmissionController {
+    /** System property enabling admission control, false by default. */
+    public static final String ADMISSION_CONTROL_PROPERTY = "simpledb.AdmissionControl";
+    /** System property with the largest number of transactions running at once. */
+    public static final String MAX_ACTIVE_PROPERTY = "simpledb.MaxActiveTransactions";
+    public static final int DEFAULT_MAX_ACTIVE = 32;
+
+    /** Completions between two adjustments of the cap. */
+    static final int WINDOW = 32;
+    /** Fraction of aborted transactions in a window above which the cap is halved. */
+    private static final double ABORT_THRESHOLD = 0.1;
+    /** Fraction of running transactions blocked on locks above which the cap is halved. */
+    private static final double BLOCKED_THRESHOLD = 0.5;
+    /** First and largest backoff before retrying an aborted transaction. */
+    private static final long BACKOFF_BASE_MILLIS = 5;
+    private static final long BACKOFF_MAX_MILLIS = 1000;
+
+    /** the work of a transaction, run by {@link #execute} */
+    public interface Work {
+        void run(Transaction t) throws DbException, IOException, TransactionAbortedException;
+    }
+
+    private final int maxActive;
+    private final Random random = new Random();
+    private boolean enabled;
+    private int limit; // current cap
+    private final HashSet<TransactionId> active = new HashSet<>();
+    private long nextTicket; // ticket of the next transaction to arrive
+    private long serving; // ticket of the next transaction to admit
+    private int completions; // in the current window
+    private int aborts; // in the current window
+    private long delayed; // transactions that had to wait to be admitted
+    private long restarts; // retries run by execute
+
+    /**
+     * @param enabled: false to admit every transaction right away
+     * @param maxActive: the largest cap
+     */
+    public AdmissionController(boolean enabled, int maxActive) {
+        if (maxActive <= 0)
+            throw new IllegalArgumentException("invalid cap " + maxActive);
+        this.enabled = enabled;
+        this.maxActive = maxActive;
+        this.limit = maxActive;
+    }
+
+    /**
+     * Wait until tid may run. Returns right away if admission control is
+     * disabled.
+     * @param tid: the transaction starting
+     */
+    public void admit(TransactionId tid) {
+        boolean interrupted = false;
+        synchronized (this) {
+            if (!enabled)
+                return;
+            long ticket = nextTicket++;
+            if (ticket != serving || active.size() >= limit)
+                delayed++;
+            while (enabled && (ticket != serving || active.size() >= limit)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // a transaction cannot give up its place, it is admitted later
+                    interrupted = true;
+                }
+            }
+            if (enabled) {
+                serving++;
+                active.add(tid);
+                // the next ticket may be admitted as well
+                notifyAll();
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Free the place of a completed transaction, and adjust the cap at the
+     * end of a window.
+     * @param tid: the transaction that completed
+     * @param aborted: true if it aborted
+     */
+    public synchronized void release(TransactionId tid, boolean aborted) {
+        if (!active.remove(tid))
+            return;
+        completions++;
+        if (aborted)
+            aborts++;
+        if (completions >= WINDOW)
+            adjust();
+        notifyAll();
+    }
+
+    /**
+     * set the cap from the outcome of the last window
+     */
+    private void adjust() {
+        double abortRate = (double) aborts / completions;
+        int blocked = Database.getBufferPool().getLockManager().getNumWaiting();
+        boolean thrashing = abortRate > ABORT_THRESHOLD
+                || blocked > BLOCKED_THRESHOLD * Math.max(1, active.size());
+        int old = limit;
+        if (thrashing)
+            limit = Math.max(1, limit / 2);
+        else if (limit < maxActive)
+            limit++;
+        if (limit != old)
+            Debug.log("AdmissionController cap %d -> %d, abort rate %.2f, %d blocked",
+                    old, limit, abortRate, blocked);
+        completions = 0;
+        aborts = 0;
+    }
+
+    /**
+     * Run work in a transaction and commit it. A transaction aborted by
+     * the deadlock policy or a failed validation is restarted, keeping its
+     * age, after a random backoff that doubles with every attempt.
+     *
+     * @param work: what the transaction does
+     * @param maxAttempts: the number of times to run it at most
+     * @return the committed transaction
+     * @throws TransactionAbortedException if the last attempt aborted too
+     */
+    public Transaction execute(Work work, int maxAttempts)
+        throws DbException, IOException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        for (int attempt = 1; ; attempt++) {
+            t.start();
+            try {
+                work.run(t);
+                t.commit();
+                return t;
+            } catch (TransactionAbortedException e) {
+                // no-op if commit aborted it already
+                t.abort();
+                if (attempt >= maxAttempts)
+                    throw e;
+                synchronized (this) {
+                    restarts++;
+                }
+                backoff(attempt);
+                t = new Transaction(t);
+            } catch (DbException | IOException | RuntimeException e) {
+                t.abort();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * sleep for a random time of up to BACKOFF_BASE_MILLIS * 2^(attempt - 1)
+     */
+    private void backoff(int attempt) {
+        long bound = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt - 1, 20));
+        long millis;
+        synchronized (random) {
+            millis = 1 + (long) (random.nextDouble() * bound);
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Turn admission control on or off. Turning it off admits the waiting
+     * transactions.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            active.clear();
+            serving = nextTicket;
+        }
+        notifyAll();
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the current number of transactions allowed to run at once
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the number of admitted transactions that have not completed
+     */
+    public synchronized int getNumActive() {
+        return active.size();
+    }
+
+    /**
+     * @return the number of transactions waiting to be admitted
+     */
+    public synchronized int getNumQueued() {
+        return (int) (nextTicket - serving);
+    }
+
+    /**
+     * @return the number of transactions that had to wait to be admitted
+     */
+    public synchronized long getDelayed() {
+        return delayed;
+    }
+
+    /**
+     * @return the number of restarts run by execute
+     */
+    public synchronized long getRestarts() {
+        return restarts;
+    }
+}
@@ -1,6 +1,5 @@
 package simpledb;
 
-import javax.xml.crypto.Data;
 import java.io.*;
 
 import java.util.*;
@@ -14,8 +13,31 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Transactions can also lock single records under an intention lock on
+ * their page, see {@link #lockRecord}: HeapFiles insert and delete tuples
+ * that way, and read them record by record, so several transactions change
+ * different records of a page at once. Such a page is dirtied by all of
+ * them, a commit writes the page with the changes of the committing
+ * transaction only, and an abort puts back the records of the aborting
+ * one, see HeapPage.
+ * <p>
+ * Read-only transactions can instead read a snapshot, see
+ * {@link #beginSnapshot}. They take no locks: every commit is stamped with
+ * a commit timestamp, and while snapshots are open the pool keeps the
+ * committed versions of pages they may still need.
+ * <p>
+ * Transactions can also run optimistically, see {@link #beginOptimistic}:
+ * they read without locks, write to private copies of pages, and are
+ * validated against the commits made since they started when they commit.
+ * <p>
+ * The pages of tables marked read-only in the Catalog are shared by every
+ * transaction without locks, and cannot be modified.
  * 
- * @Threadsafe, all fields are final
+ * @Threadsafe: the cached pages, the pool size and its adaptive sizer, the
+ * stolen images, the page versions kept for snapshots and the statistics
+ * are guarded by the pool's monitor; snapshot and optimistic state live
+ * in concurrent maps, and the LockManager synchronizes itself.
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -27,12 +49,68 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+    /**
+     * System property choosing how transactions run by default: "locking"
+     * (default) for two-phase locking, "optimistic" for optimistic
+     * concurrency control.
+     */
+    public static final String CONCURRENCY_CONTROL_PROPERTY = "simpledb.ConcurrencyControl";
+    /**
+     * System property choosing which pages may be evicted: "nosteal"
+     * (default) evicts clean pages only, "steal" also writes out and evicts
+     * pages dirtied by running transactions.
+     */
+    public static final String EVICTION_POLICY_PROPERTY = "simpledb.EvictionPolicy";
     private int maxPages;
     private LinkedHashMap<PageId, Page> pageMap;
 
     // add lockManage
     private LockManager lockManager;
 
+    // off-heap frames holding page images, null if pages live on the heap only
+    private PageFrameArena arena;
+    private HashMap<PageId, Integer> pageFrames; // frame index of each framed page
+
+    // pages being read by prefetchPage, a page leaves the set when the pool
+    // writes or drops it while it is read, so the stale copy is not installed
+    private final HashSet<PageId> prefetching = new HashSet<>();
+
+    // dirty pages evicted before their transaction completed (STEAL): their
+    // last committed image and the transaction that dirtied them
+    private final HashMap<PageId, Page> stolenImages = new HashMap<>();
+    private final HashMap<PageId, TransactionId> stolenBy = new HashMap<>();
+    private boolean steal; // true if dirty pages may be evicted
+
+    private long hits; // getPage calls served from the pool
+    private long misses; // getPage calls that read from disk
+    private long evictions; // pages evicted to make room
+    private long pagesWritten; // pages written back to their files
+    private final LatencyHistogram readLatency = new LatencyHistogram(); // one page read
+    private final LatencyHistogram writeLatency = new LatencyHistogram(); // one batched file write
+    private AdaptivePoolSizer sizer; // null unless the pool sizes itself
+
+    private long commitClock; // timestamp of the latest commit
+    // snapshot timestamp of every open read-only transaction
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    // timestamp of the latest commit of a page, pages not in here were committed before every snapshot
+    private final HashMap<PageId, Long> pageCommits = new HashMap<>();
+    // earlier committed versions of pages, by the timestamp they were committed at
+    private final HashMap<PageId, TreeMap<Long, Page>> pageVersions = new HashMap<>();
+
+    /** the pages an optimistic transaction read and wrote, guarded by the pool */
+    private static class OptimisticState {
+        final long start; // commit timestamp the transaction started after
+        final HashSet<PageId> reads = new HashSet<>();
+        final HashMap<PageId, Page> writes = new HashMap<>(); // private copies
+        OptimisticState(long start) {
+            this.start = start;
+        }
+    }
+    // state of every running optimistic transaction
+    private final ConcurrentHashMap<TransactionId, OptimisticState> optimistic = new ConcurrentHashMap<>();
+    private volatile boolean optimisticDefault;
+    private long validationFailures;
+
 
 
     /**
@@ -45,6 +123,29 @@ public class BufferPool {
         this.maxPages = numPages;
         pageMap = new LinkedHashMap<>();
         this.lockManager = new LockManager();
+        pageFrames = new HashMap<>();
+        optimisticDefault = "optimistic".equals(System.getProperty(CONCURRENCY_CONTROL_PROPERTY, "locking"));
+        steal = "steal".equals(System.getProperty(EVICTION_POLICY_PROPERTY, "nosteal"));
+    }
+
+    /**
+     * Creates a BufferPool whose size is a memory budget in bytes rather than
+     * a number of pages.
+     * <p>
+     * If offHeap is set, the budget is pre-allocated as a {@link PageFrameArena}
+     * of direct memory, and every resident page is a view over its own frame:
+     * its header and tuples are decoded from the frame when accessed, instead
+     * of living on the Java heap. Only the before image of a dirty page stays
+     * on the heap, until its transaction completes.
+     *
+     * @param budgetBytes number of bytes of page images this pool may hold
+     * @param offHeap true to keep page images in off-heap frames
+     */
+    public BufferPool(long budgetBytes, boolean offHeap) {
+        this((int) Math.min(Integer.MAX_VALUE, budgetBytes / getPageSize()));
+        if (offHeap) {
+            arena = new PageFrameArena(budgetBytes, getPageSize());
+        }
     }
     
     public static int getPageSize() {
@@ -79,31 +180,420 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        if(perm == Permissions.READ_ONLY)
+            return getPage(tid, pid, LockMode.S);
+        if(perm != Permissions.READ_WRITE)
+            throw new DbException("no such permission");
+        return getPage(tid, pid, LockMode.X);
+    }
 
-        if(perm == Permissions.READ_ONLY){
-            lockManager.acquireReadLock(tid, pid);
+    /**
+     * Retrieve the specified page under a lock of the given mode, like
+     * {@link #getPage(TransactionId, PageId, Permissions)}. IS and IX let
+     * the transaction read or change the records of the page it locks on
+     * their own, see {@link #lockRecord}. A page fetched under IX is marked
+     * dirty by the transaction right away, so it is not dropped from the
+     * pool before the transaction changes its records.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param mode the lock to take on the page
+     */
+    public Page getPage(TransactionId tid, PageId pid, LockMode mode)
+        throws TransactionAbortedException, DbException {
+        Permissions perm = mode == LockMode.IS || mode == LockMode.S
+                ? Permissions.READ_ONLY : Permissions.READ_WRITE;
+        if(Database.getCatalog().isReadOnly(pid.getTableId())){
+            if(perm != Permissions.READ_ONLY)
+                throw new DbException("table " + pid.getTableId() + " is read-only");
+            return getUnlockedPage(pid);
         }
-        else {
-            if(perm != Permissions.READ_WRITE)
-                throw new DbException("no such permission");
-            lockManager.acquireWriteLock(tid, pid);
+
+        Long snapshot = snapshots.get(tid);
+        if(snapshot != null){
+            if(perm != Permissions.READ_ONLY)
+                throw new DbException("read-only transaction cannot modify " + pid);
+            return getSnapshotPage(pid, snapshot);
         }
+        OptimisticState occ = optimistic.get(tid);
+        if(occ != null)
+            return getOptimisticPage(occ, pid, perm);
+
+        lockManager.acquireLock(tid, LockId.page(pid), mode);
 
         synchronized (this){
             Page curPage = pageMap.get(pid);
             // if cannot found in the buffer bool
             // read from disk and put it to the buffer pool (if there are still spaces)
             if(curPage == null) {
+                misses++;
                 if(pageMap.size() >= maxPages){
                     evictPage();
                 }
+                long start = System.nanoTime();
                 curPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                pageMap.put(pid, curPage);
+                readLatency.record(System.nanoTime() - start);
+                restoreStolen(curPage);
+                cachePage(curPage);
             }
+            else
+                hits++;
+            if(mode == LockMode.IX && curPage instanceof HeapPage && !((HeapPage) curPage).isDirtiedBy(tid))
+                curPage.markDirty(true, tid);
             return curPage;
         }
     }
 
+    /**
+     * Start a snapshot for a read-only transaction. Until the transaction
+     * completes, its getPage calls return the pages as they were committed
+     * when the snapshot started, without taking locks, and it cannot
+     * modify pages.
+     *
+     * @param tid the ID of the read-only transaction
+     */
+    public synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, commitClock);
+    }
+
+    /**
+     * @return true if tid reads a snapshot
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * End the snapshot of tid, and drop the page versions no open
+     * snapshot needs anymore.
+     */
+    private synchronized void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) != null)
+            collectVersions();
+    }
+
+    /**
+     * Drop the page versions and commit timestamps that no open snapshot or
+     * optimistic transaction needs anymore.
+     */
+    private synchronized void collectVersions() {
+        if (snapshots.isEmpty())
+            pageVersions.clear();
+        if (snapshots.isEmpty() && optimistic.isEmpty()) {
+            pageCommits.clear();
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (OptimisticState occ : optimistic.values())
+            oldest = Math.min(oldest, occ.start);
+        if (!snapshots.isEmpty())
+            oldest = Math.min(oldest, pruneVersions(Collections.min(snapshots.values())));
+        final long floor = oldest;
+        pageCommits.values().removeIf(ts -> ts <= floor);
+    }
+
+    /**
+     * Drop the page versions older than the one the oldest snapshot sees.
+     * @param oldest the timestamp of the oldest snapshot
+     * @return oldest
+     */
+    private long pruneVersions(long oldest) {
+        Iterator<Map.Entry<PageId, TreeMap<Long, Page>>> it = pageVersions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PageId, TreeMap<Long, Page>> entry = it.next();
+            if (pageCommits.getOrDefault(entry.getKey(), 0L) <= oldest) {
+                // every snapshot sees the latest committed version
+                it.remove();
+                continue;
+            }
+            // the version seen by the oldest snapshot and the later ones stay
+            TreeMap<Long, Page> versions = entry.getValue();
+            versions.headMap(versions.floorKey(oldest)).clear();
+        }
+        return oldest;
+    }
+
+    /**
+     * @return the version of pid committed at or before snapshot. The page
+     *   is a private copy, changes to the pool do not show through it.
+     */
+    private synchronized Page getSnapshotPage(PageId pid, long snapshot) {
+        long committed = pageCommits.getOrDefault(pid, 0L);
+        if (committed > snapshot)
+            return pageVersions.get(pid).floorEntry(snapshot).getValue();
+        // the latest committed version is visible to the snapshot
+        return getCommittedPage(pid);
+    }
+
+    /**
+     * @return the resident page pid, read into the pool if needed, without
+     *   locking it. Only for pages that are never modified.
+     */
+    private synchronized Page getUnlockedPage(PageId pid) throws DbException {
+        Page page = pageMap.get(pid);
+        if (page != null) {
+            hits++;
+            return page;
+        }
+        misses++;
+        if (pageMap.size() >= maxPages)
+            evictPage();
+        long start = System.nanoTime();
+        page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        readLatency.record(System.nanoTime() - start);
+        cachePage(page);
+        return page;
+    }
+
+    /**
+     * @return a private copy of the latest committed version of pid
+     */
+    private synchronized Page getCommittedPage(PageId pid) {
+        Page page = pageMap.get(pid);
+        if (page != null) {
+            hits++;
+            return page.getBeforeImage();
+        }
+        // a stolen page is on disk before its transaction commits
+        Page stolen = stolenImages.get(pid);
+        if (stolen != null)
+            return stolen.getBeforeImage();
+        misses++;
+        long start = System.nanoTime();
+        page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        readLatency.record(System.nanoTime() - start);
+        return page;
+    }
+
+    /**
+     * Stamp the commit of pages with a new commit timestamp. The versions
+     * they replace are kept if an open snapshot may still read them.
+     * Must be called before the before images of the pages are updated.
+     *
+     * @param pages the pages committed together
+     */
+    private synchronized void stampCommit(List<Page> pages) {
+        long ts = ++commitClock;
+        if (snapshots.isEmpty() && optimistic.isEmpty())
+            return;
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            long previous = pageCommits.getOrDefault(pid, 0L);
+            if (!snapshots.isEmpty())
+                pageVersions.computeIfAbsent(pid, p -> new TreeMap<>()).put(previous, page.getBeforeImage());
+            pageCommits.put(pid, ts);
+        }
+    }
+
+    /**
+     * @return the number of old page versions kept for snapshots
+     */
+    public synchronized int getNumPageVersions() {
+        int n = 0;
+        for (TreeMap<Long, Page> versions : pageVersions.values())
+            n += versions.size();
+        return n;
+    }
+
+    /**
+     * Run a transaction optimistically. Until it validates, its getPage
+     * calls take no locks: reads return the latest committed version of a
+     * page, and the first write of a page makes a private copy the rest of
+     * the transaction works on. Nothing it writes is visible to others
+     * before {@link #validate}.
+     *
+     * @param tid the ID of the transaction, which must not hold locks yet
+     */
+    public synchronized void beginOptimistic(TransactionId tid) {
+        optimistic.put(tid, new OptimisticState(commitClock));
+    }
+
+    /**
+     * @return true if tid runs optimistically and has not validated yet
+     */
+    public boolean isOptimistic(TransactionId tid) {
+        return optimistic.containsKey(tid);
+    }
+
+    /**
+     * @return true if new transactions run optimistically unless told otherwise
+     */
+    public boolean isOptimisticDefault() {
+        return optimisticDefault;
+    }
+
+    /**
+     * Choose whether new transactions run optimistically by default, see
+     * {@link #CONCURRENCY_CONTROL_PROPERTY}.
+     */
+    public void setOptimisticDefault(boolean optimisticDefault) {
+        this.optimisticDefault = optimisticDefault;
+    }
+
+    private synchronized Page getOptimisticPage(OptimisticState occ, PageId pid, Permissions perm)
+        throws DbException {
+        if(perm != Permissions.READ_ONLY && perm != Permissions.READ_WRITE)
+            throw new DbException("no such permission");
+        Page page = occ.writes.get(pid);
+        if (page != null)
+            return page;
+        occ.reads.add(pid);
+        page = getCommittedPage(pid);
+        if (perm == Permissions.READ_WRITE)
+            occ.writes.put(pid, page);
+        return page;
+    }
+
+    /**
+     * Validate an optimistic transaction before it commits. It fails if a
+     * page the transaction read or wrote was committed by someone else since
+     * it started, or if another transaction holds a lock that conflicts with
+     * it. Otherwise the transaction locks the pages it read (S) and wrote
+     * (X) without waiting, and its private pages replace the committed ones
+     * in the pool as its dirty pages, so it completes like a locking
+     * transaction. The locks are only held for the short time until
+     * transactionComplete.
+     * Does nothing if tid does not run optimistically.
+     *
+     * @param tid the ID of the transaction to validate
+     * @throws TransactionAbortedException if validation fails, tid must then abort
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException {
+        OptimisticState occ = optimistic.get(tid);
+        if (occ == null)
+            return;
+        synchronized (this) {
+            HashSet<PageId> touched = new HashSet<>(occ.reads);
+            touched.addAll(occ.writes.keySet());
+            for (PageId pid : touched) {
+                LockMode mode = occ.writes.containsKey(pid) ? LockMode.X : LockMode.S;
+                if (pageCommits.getOrDefault(pid, 0L) > occ.start
+                        || !lockManager.tryAcquireLock(tid, LockId.page(pid), mode)) {
+                    validationFailures++;
+                    throw new TransactionAbortedException();
+                }
+            }
+            for (Page page : occ.writes.values())
+                cachePage(page);
+            optimistic.remove(tid);
+            collectVersions();
+        }
+    }
+
+    /**
+     * Drop the private pages of an optimistic transaction that did not validate.
+     */
+    private synchronized void endOptimistic(TransactionId tid) {
+        if (optimistic.remove(tid) != null)
+            collectVersions();
+    }
+
+    /**
+     * @return the number of optimistic transactions that failed validation
+     */
+    public synchronized long getValidationFailures() {
+        return validationFailures;
+    }
+
+    /**
+     * Keep a page dirtied by tid: in the pool, or in the private pages of
+     * tid if it runs optimistically.
+     */
+    private synchronized void cacheDirtyPage(TransactionId tid, Page page) {
+        page.markDirty(true, tid);
+        OptimisticState occ = optimistic.get(tid);
+        if (occ != null)
+            occ.writes.put(page.getId(), page);
+        else
+            cachePage(page);
+    }
+
+    /**
+     * Read a page into the buffer pool on behalf of no transaction, used to
+     * warm the pool up. Does not acquire locks and never evicts: the page is
+     * only added if it is not resident and the pool still has room.
+     *
+     * @param pid the ID of the page to prefetch
+     * @return true if the page was added to the pool
+     */
+    boolean prefetchPage(PageId pid) {
+        if (!beginPrefetch(pid))
+            return false;
+        Page page;
+        long start = System.nanoTime();
+        try {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (NoSuchElementException | IllegalArgumentException e) {
+            synchronized (this) {
+                prefetching.remove(pid);
+            }
+            return false;
+        }
+        readLatency.record(System.nanoTime() - start);
+        return installPrefetch(page);
+    }
+
+    /**
+     * Start prefetching a page, the read is only installed by
+     * installPrefetch if the pool does not write or drop the page meanwhile.
+     * @return false if the page is resident, already being prefetched, was
+     *   stolen, or the pool is full
+     */
+    synchronized boolean beginPrefetch(PageId pid) {
+        if (pageMap.containsKey(pid) || prefetching.contains(pid) || stolenImages.containsKey(pid)
+                || pageMap.size() >= maxPages)
+            return false;
+        prefetching.add(pid);
+        return true;
+    }
+
+    /**
+     * Add a page read after beginPrefetch to the pool.
+     * @return true if the page was added, false if it may be stale or there is no room
+     */
+    synchronized boolean installPrefetch(Page page) {
+        // the pool wrote or dropped the page while we were reading, our copy may be stale
+        if (!prefetching.remove(page.getId()) || pageMap.containsKey(page.getId()) || pageMap.size() >= maxPages)
+            return false;
+        cachePage(page);
+        return true;
+    }
+
+    /**
+     * @return true if the buffer pool holds as many pages as it may
+     */
+    public synchronized boolean isFull() {
+        return pageMap.size() >= maxPages;
+    }
+
+    /**
+     * Save the ids of all resident pages to f, so that a restarted database
+     * can warm its pool up with {@link #warmUp}.
+     *
+     * @param f the file to write
+     */
+    public void saveResidentPages(File f) throws IOException {
+        ArrayList<PageId> pids;
+        synchronized (this) {
+            pids = new ArrayList<>(pageMap.keySet());
+        }
+        BufferPoolWarmer.writePageList(f, pids);
+    }
+
+    /**
+     * Prefetch, in the background, the pages saved by {@link #saveResidentPages}
+     * until the pool is full. Does nothing if f does not exist.
+     *
+     * @param f the file written by saveResidentPages
+     * @param numThreads number of threads reading pages in parallel
+     * @return the warmer, which can be asked how many pages it loaded
+     */
+    public BufferPoolWarmer warmUp(File f, int numThreads) {
+        BufferPoolWarmer warmer = new BufferPoolWarmer(this, f, numThreads);
+        warmer.start();
+        return warmer;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -134,6 +624,76 @@ public class BufferPool {
 
 
 
+    /**
+     * Lock a whole table. IS and IX announce the page and record locks to
+     * come, a shared lock lets the transaction read every page of the table
+     * without locking them one by one.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param mode the requested mode
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode)
+        throws TransactionAbortedException {
+        if(!takesLocks(tid, tableId))
+            return;
+        lockManager.acquireLock(tid, LockId.table(tableId), mode);
+    }
+
+    /**
+     * Lock a single record, after intention locks on its table and page.
+     * A transaction that read or changed a record holds its lock until it
+     * completes; records inserted next to the ones it read are not locked.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the record to lock
+     * @param mode the requested mode
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, LockMode mode)
+        throws TransactionAbortedException {
+        if(!takesLocks(tid, rid.getPageId().getTableId()))
+            return;
+        lockManager.acquireLock(tid, LockId.record(rid), mode);
+    }
+
+    /**
+     * @return false if tid reads and writes a table without locks: it reads
+     *   a snapshot, runs optimistically, or the table is read-only
+     */
+    public boolean takesLocks(TransactionId tid, int tableId) {
+        return !isSnapshot(tid) && !isOptimistic(tid) && !Database.getCatalog().isReadOnly(tableId);
+    }
+
+    /**
+     * @param tableId the table to check
+     * @return true if a running transaction writes the table: it holds an
+     *   intention or exclusive lock on it, or a page of it is dirty
+     */
+    public synchronized boolean isWritten(int tableId) {
+        if(lockManager.isWriteLocked(LockId.table(tableId)))
+            return true;
+        for(Page page : pageMap.values()){
+            if(page.getId().getTableId() == tableId && page.isDirty() != null)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the lock manager of this pool
+     */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * Choose how lock requests that could deadlock are handled.
+     * @param policy the new deadlock policy
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        lockManager.setDeadlockPolicy(policy);
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId pid) {
         // some code goes here
@@ -143,40 +703,80 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. An optimistic transaction must be validated before
+     * it commits, see {@link #validate}: Transaction.commit does, and
+     * aborts the transaction the usual way if it fails. A commit of an
+     * optimistic transaction that was not validated validates it here.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @throws IOException if the commit of an optimistic transaction fails
+     *   validation, after it was aborted and its locks were released
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
 
-        if(lockManager.getLockedPages(tid) == null)
+        endSnapshot(tid);
+        if(commit && isOptimistic(tid)){
+            try {
+                validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(tid, false);
+                throw new IOException("transaction " + tid.getId() + " failed validation and was aborted", e);
+            }
+        }
+        endOptimistic(tid);
+        if(lockManager.getLocks(tid) == null)
             return;
-        HashSet<PageId> dirtyPages = lockManager.getLockedPages(tid);
         // commit
         // force: force all dirty pages to disk after transaction
         if(commit){
-            for(PageId pid : dirtyPages){
-                // no force: for each dirty pages, force the log to disk
-                if(holdsLock(tid, pid)){
-                    flushPage(pid);
-                    pageMap.get(pid).markDirty(false, null);
-                    pageMap.get(pid).setBeforeImage();
+            synchronized (this){
+                ArrayList<Page> pages = dirtyPagesOf(tid);
+                // pages other running transactions changed too are written
+                // with the changes of tid only
+                ArrayList<Page> images = new ArrayList<>();
+                for(Page page : pages)
+                    images.add(page instanceof HeapPage ? ((HeapPage) page).getCommitImage(tid) : page);
+                writePages(images);
+                ArrayList<Page> committed = new ArrayList<>(images);
+                // stolen pages that were not read back are on disk already,
+                // their committed images are the versions this commit replaces
+                for(Page image : takeStolenImages(tid)){
+                    if(!pageMap.containsKey(image.getId()))
+                        committed.add(image);
+                }
+                stampCommit(committed);
+                for(Page page : pages){
+                    if(page instanceof HeapPage){
+                        ((HeapPage) page).commit(tid);
+                        continue;
+                    }
+                    page.markDirty(false, null);
+                    page.setBeforeImage();
                 }
             }
         }
         //abort transaction
         else {
-            for(PageId pid : dirtyPages){
-                Page cur = pageMap.get(pid);
-                if(cur != null && cur.isDirty() != null && cur.isDirty().equals(tid)){
-                    pageMap.put(pid, cur.getBeforeImage());
+            synchronized (this){
+                // heap pages are rolled back in place, other transactions
+                // changing their records may hold them
+                for(Page cur : dirtyPagesOf(tid)){
+                    if(cur instanceof HeapPage){
+                        ((HeapPage) cur).rollback(tid);
+                        continue;
+                    }
+                    cachePage(cur.getBeforeImage());
                     cur.markDirty(false, null);
                 }
-
+                // the log rolls stolen pages back and discards them first,
+                // the ones left were aborted without it: put back their
+                // committed images
+                for(Page image : takeStolenImages(tid))
+                    Database.getCatalog().getDatabaseFile(image.getId().getTableId()).writePage(image);
             }
         }
         // release all locks charged by this tid
@@ -185,8 +785,8 @@ public class BufferPool {
 
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
-     * acquire a write lock on the page the tuple is added to and any other 
-     * pages that are updated (Lock acquisition is not needed for lab2). 
+     * acquire an exclusive lock on the new record, and an intention lock on
+     * the page it is added to and any other pages that are updated.
      * May block if the lock(s) cannot be acquired.
      * 
      * Marks any pages that were dirtied by the operation as dirty by calling
@@ -204,17 +804,19 @@ public class BufferPool {
         // not necessary for lab1
         // insert tuple through the heapfile access method
         // and get the returned list of pages
+        if(Database.getCatalog().isReadOnly(tableId))
+            throw new DbException("table " + tableId + " is read-only");
         ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
         for(Page page : pages){
-            page.markDirty(true, tid);
-            pageMap.put(page.getId(), page);
+            cacheDirtyPage(tid, page);
         }
     }
 
     /**
      * Remove the specified tuple from the buffer pool.
-     * Will acquire a write lock on the page the tuple is removed from and any
-     * other pages that are updated. May block if the lock(s) cannot be acquired.
+     * Will acquire an exclusive lock on the record, and an intention lock on
+     * the page the tuple is removed from and any other pages that are
+     * updated. May block if the lock(s) cannot be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have 
@@ -229,10 +831,11 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         int tableid = t.getRecordId().getPageId().getTableId();
+        if(Database.getCatalog().isReadOnly(tableid))
+            throw new DbException("table " + tableid + " is read-only");
         ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableid).deleteTuple(tid, t);
         for(Page page : pages){
-            page.markDirty(true, tid);
-            pageMap.put(page.getId(), page);
+            cacheDirtyPage(tid, page);
         }
 
 
@@ -246,12 +849,12 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(PageId pid : pageMap.keySet()){
-            if(pageMap.get(pid).isDirty() != null)
-                flushPage(pid);
+        ArrayList<Page> pages = new ArrayList<>();
+        for(Page page : pageMap.values()){
+            if(page.isDirty() != null)
+                pages.add(page);
         }
-
-
+        writePages(pages);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -265,36 +868,95 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pageMap.remove(pid);
+        removePage(pid);
+        prefetching.remove(pid);
+        stolenImages.remove(pid);
+        stolenBy.remove(pid);
     }
 
     /**
-     * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
+     * Remove a page the log rolled back for tid on disk from the buffer
+     * pool, unless other running transactions dirtied it too: the page then
+     * stays, and the abort of tid puts back its records in place.
+     *
+     * @param pid the page rolled back
+     * @param tid the transaction rolled back
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
-        try {
-            HeapPage page = (HeapPage)pageMap.get(pid);
-            if(page != null && page.isDirty() != null){
-                int tableId = pid.getTableId();
-                HeapFile file = (HeapFile)Database.getCatalog().getDatabaseFile(tableId);
-                // update record to the log
-                Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
-                Database.getLogFile().force();
-
-                file.writePage(page);
-//                page.setBeforeImage();
-//                page.markDirty(false, null);
-            }
+    public synchronized void discardRolledBackPage(PageId pid, TransactionId tid) {
+        Page page = pageMap.get(pid);
+        if(page instanceof HeapPage) {
+            Set<TransactionId> dirtiers = ((HeapPage) page).getDirtiers();
+            dirtiers.remove(tid);
+            if(!dirtiers.isEmpty())
+                return;
+        }
+        discardPage(pid);
+    }
 
+    /**
+     * Put a page into the buffer pool, replacing any other version of the
+     * same page, and give it an off-heap frame if this pool has an arena.
+     * @param page: the page to cache
+     */
+    private synchronized void cachePage(Page page) {
+        PageId pid = page.getId();
+        Page old = pageMap.get(pid);
+        if (old == page)
+            return;
+        if (old != null)
+            releaseFrame(pid, old);
+        pageMap.put(pid, page);
+        if (arena != null && page instanceof HeapPage) {
+            int frame = arena.allocate();
+            // pages that do not get a frame simply stay on the heap
+            if (frame >= 0) {
+                if (((HeapPage) page).attachFrame(arena.frame(frame)))
+                    pageFrames.put(pid, frame);
+                else
+                    arena.release(frame);
+            }
         }
-        catch (IOException e) {
-            e.printStackTrace();
+    }
+
+    /**
+     * Remove a page from the buffer pool and return its frame to the arena.
+     * @param pid: id of the page to remove
+     */
+    private synchronized void removePage(PageId pid) {
+        Page page = pageMap.remove(pid);
+        if (page != null)
+            releaseFrame(pid, page);
+    }
+
+    /**
+     * Move the page image of a page back onto the heap and free its frame,
+     * callers may still hold a reference to the page.
+     */
+    private void releaseFrame(PageId pid, Page page) {
+        Integer frame = pageFrames.remove(pid);
+        if (frame != null) {
+            ((HeapPage) page).detachFrame();
+            arena.release(frame);
         }
+    }
 
+    /**
+     * @return the off-heap frames of this pool, or null if pages are kept on the heap
+     */
+    public PageFrameArena getFrameArena() {
+        return arena;
+    }
 
+    /**
+     * Flushes a certain page to disk
+     * @param pid an ID indicating the page to flush
+     */
+    private synchronized  void flushPage(PageId pid) throws IOException {
+        // some code goes here
+        // not necessary for lab1
+        Page page = pageMap.get(pid);
+        if(page != null && page.isDirty() != null)
+            writePages(Collections.singletonList(page));
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -302,29 +964,336 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        writePages(dirtyPagesOf(tid));
+    }
+
+    /**
+     * @return the resident pages dirtied by tid, and maybe by other transactions
+     */
+    private synchronized ArrayList<Page> dirtyPagesOf(TransactionId tid) {
+        ArrayList<Page> pages = new ArrayList<>();
+        for(Page page : pageMap.values()){
+            if(page instanceof HeapPage ? ((HeapPage) page).isDirtiedBy(tid) : tid.equals(page.isDirty()))
+                pages.add(page);
+        }
+        return pages;
+    }
+
+    /**
+     * Write a batch of dirty pages back to their files.
+     * All UPDATE records are appended first and the log is forced once for
+     * the whole batch (write ahead logging). A page dirtied by several
+     * transactions is logged with one record for each of them, see
+     * HeapPage#getUpdatesByTransaction. The pages are then sorted by
+     * table and page number, so that each file is written front to back and
+     * runs of adjacent pages go out in a single vectored write.
+     * Pages stay dirty, callers decide when they become clean.
+     *
+     * @param pages dirty pages, in any order
+     */
+    private synchronized void writePages(List<Page> pages) throws IOException {
+        if(pages.isEmpty())
+            return;
+        LogFile log = Database.getLogFile();
+        for(Page page : pages){
+            List<? extends Page> updates = page instanceof HeapPage
+                    ? ((HeapPage) page).getUpdatesByTransaction() : Collections.singletonList(page);
+            long lsn = PageCodecs.NO_PAGE_LSN;
+            for(Page update : updates)
+                lsn = log.logWrite(update.isDirty(), update.getBeforeImage(), update);
+            // set under the page latch, the page LSN reaches the disk with the page
+            PageCodecs.codecOf(page).setPageLsn(page, lsn);
+        }
+        log.force();
+
+        ArrayList<Page> sorted = new ArrayList<>(pages);
+        Collections.sort(sorted, new Comparator<Page>() {
+            public int compare(Page a, Page b) {
+                PageId x = a.getId(), y = b.getId();
+                if(x.getTableId() != y.getTableId())
+                    return Integer.compare(x.getTableId(), y.getTableId());
+                return Integer.compare(x.getPageNumber(), y.getPageNumber());
+            }
+        });
+        int start = 0;
+        while(start < sorted.size()){
+            int tableId = sorted.get(start).getId().getTableId();
+            int end = start;
+            while(end < sorted.size() && sorted.get(end).getId().getTableId() == tableId)
+                end++;
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            List<Page> tablePages = sorted.subList(start, end);
+            long writeStart = System.nanoTime();
+            if(file instanceof HeapFile){
+                ((HeapFile) file).writePages(tablePages);
+            }
+            else {
+                for(Page page : tablePages)
+                    file.writePage(page);
+            }
+            writeLatency.record(System.nanoTime() - writeStart);
+            pagesWritten += tablePages.size();
+            start = end;
+        }
+        log.pagesWritten(pages);
+        for(Page page : pages)
+            prefetching.remove(page.getId());
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Evicts in the order pages were added, and evicts as many pages as
+     * needed to get under maxPages, which lets a pool that was just shrunk
+     * catch up. Under NO STEAL only clean pages are evicted: dirty pages
+     * stay in the pool until their transaction completes, so an abort never
+     * has to undo changes on disk. Under STEAL dirty pages are written to
+     * disk before they are evicted, an abort then rolls them back from the
+     * log.
+     *
+     * @throws DbException if every page in the pool is dirty under NO
+     *   STEAL, or the pages to evict cannot be written
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        // evict policy: evict the first pages that added to the buffer
-        // 1. get keyset for pageMap
-        Iterator<PageId> iter = pageMap.keySet().iterator();
-        while(pageMap.size() >= maxPages && iter.hasNext()){
-            PageId curPid = iter.next();
-            // steal policy for lab4
-            try {
-                flushPage(curPid);
-            } catch (IOException e){
-                e.printStackTrace();
+        int evicted;
+        try {
+            evicted = evictPages(maxPages - 1);
+        } catch (IOException e) {
+            throw new DbException("could not write evicted pages: " + e.getMessage());
+        }
+        if(evicted == 0)
+            throw new DbException("No pages can be evicted");
+    }
+
+    /**
+     * evict pages, oldest first, until at most numPages pages are left.
+     * Dirty pages are skipped under NO STEAL. Under STEAL the dirty pages
+     * among them are written in one batch, and their committed images are
+     * kept until their transactions complete. A page is only stolen from a
+     * transaction that can lock it exclusively right away, so that no other
+     * transaction changes its records until it completes.
+     * @param numPages: number of pages to get down to
+     * @return the number of pages evicted
+     */
+    private synchronized int evictPages(int numPages) throws IOException {
+        ArrayList<Page> victims = new ArrayList<>();
+        ArrayList<Page> dirty = new ArrayList<>();
+        Iterator<Page> iter = pageMap.values().iterator();
+        while(pageMap.size() - victims.size() > numPages && iter.hasNext()){
+            Page page = iter.next();
+            if(page.isDirty() != null){
+                if(!steal || !canSteal(page))
+                    continue;
+                dirty.add(page);
+            }
+            victims.add(page);
+        }
+        writePages(dirty);
+        for(Page page : dirty){
+            stolenImages.put(page.getId(), page.getBeforeImage());
+            stolenBy.put(page.getId(), page.isDirty());
+        }
+        for(Page page : victims){
+            removePage(page.getId());
+            evictions++;
+        }
+        return victims.size();
+    }
+
+    /**
+     * @return true if the single transaction that dirtied a page holds, or
+     *   gets right away, an exclusive lock on it
+     */
+    private boolean canSteal(Page page) {
+        if(page instanceof HeapPage && ((HeapPage) page).getDirtiers().size() > 1)
+            return false;
+        return lockManager.tryAcquireLock(page.isDirty(), LockId.page(page.getId()), LockMode.X);
+    }
+
+    /**
+     * Give a page read back from disk the committed image it had when it
+     * was stolen, it is dirty again until its transaction completes.
+     * The image is kept, the disk still holds the uncommitted page.
+     * @param page: the page as read from disk
+     */
+    private synchronized void restoreStolen(Page page) {
+        Page image = stolenImages.get(page.getId());
+        if(image == null)
+            return;
+        ((HeapPage) page).setBeforeImage(image.getPageData());
+        page.markDirty(true, stolenBy.get(page.getId()));
+    }
+
+    /**
+     * Forget the pages of tid that were stolen.
+     * @return the committed images of these pages
+     */
+    private synchronized ArrayList<Page> takeStolenImages(TransactionId tid) {
+        ArrayList<Page> images = new ArrayList<>();
+        Iterator<Map.Entry<PageId, TransactionId>> iter = stolenBy.entrySet().iterator();
+        while(iter.hasNext()){
+            Map.Entry<PageId, TransactionId> entry = iter.next();
+            if(entry.getValue().equals(tid)){
+                images.add(stolenImages.remove(entry.getKey()));
+                iter.remove();
             }
-            pageMap.remove(curPid);
         }
-        throw new DbException("No pages can be evicted");
+        return images;
+    }
+
+    /**
+     * Change the number of pages this buffer pool may hold while it is in
+     * use. Growing takes effect at once. Shrinking evicts pages right away:
+     * under STEAL dirty pages are written and evicted too, under NO STEAL
+     * they are left alone and the pool gets down to its new size as their
+     * transactions complete and they are evicted.
+     * An off-heap pool grows or shrinks its frame arena along with it.
+     *
+     * @param numPages the new maximum number of pages
+     */
+    public synchronized void resize(int numPages) throws IOException {
+        if(numPages <= 0)
+            throw new IllegalArgumentException("buffer pool needs at least one page");
+        maxPages = numPages;
+        if(arena != null)
+            arena.setCapacity(numPages);
+        evictPages(maxPages);
+    }
+
+    /**
+     * @return true if dirty pages may be evicted (STEAL)
+     */
+    public synchronized boolean isSteal() {
+        return steal;
+    }
+
+    /**
+     * Choose whether dirty pages may be evicted, for the evictions to come.
+     * @param steal true for STEAL, false for NO STEAL
+     */
+    public synchronized void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    /**
+     * @return the maximum number of pages this buffer pool may hold
+     */
+    public synchronized int getMaxPages() {
+        return maxPages;
+    }
+
+    /**
+     * @return the number of pages currently in the buffer pool
+     */
+    public synchronized int getNumPages() {
+        return pageMap.size();
+    }
+
+    /**
+     * @return the number of getPage calls that found their page in the pool
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of getPage calls that had to read their page from disk
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of pages evicted to make room for other pages
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of pages written back to their files
+     */
+    public synchronized long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /**
+     * @return the number of resident pages that are dirty
+     */
+    public synchronized int getNumDirtyPages() {
+        int dirty = 0;
+        for(Page page : pageMap.values()){
+            if(page.isDirty() != null)
+                dirty++;
+        }
+        return dirty;
+    }
+
+    /**
+     * @return for each table with resident pages, the number of its pages in the pool
+     */
+    public synchronized Map<Integer, Integer> getTableResidency() {
+        HashMap<Integer, Integer> residency = new HashMap<>();
+        for(PageId pid : pageMap.keySet()){
+            Integer count = residency.get(pid.getTableId());
+            residency.put(pid.getTableId(), count == null ? 1 : count + 1);
+        }
+        return residency;
+    }
+
+    /**
+     * @return time taken by each page read from disk
+     */
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    /**
+     * @return time taken by each file write, a write may cover several adjacent pages
+     */
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * Set hit, miss, eviction and write counters and latency histograms back to zero.
+     */
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        pagesWritten = 0;
+        readLatency.reset();
+        writeLatency.reset();
+    }
+
+    /**
+     * Let the pool resize itself between minPages and maxPages so that its
+     * hit ratio stays close to targetHitRatio. Replaces any previous
+     * adaptive sizing of this pool.
+     *
+     * @param targetHitRatio hit ratio to aim for, between 0 and 1
+     * @param minPages the pool never shrinks below this size
+     * @param maxPages the pool never grows above this size
+     * @param intervalMillis how often to look at the hit ratio
+     * @see AdaptivePoolSizer
+     */
+    public synchronized void enableAdaptiveSizing(double targetHitRatio, int minPages,
+                                                  int maxPages, long intervalMillis) {
+        disableAdaptiveSizing();
+        sizer = new AdaptivePoolSizer(this, targetHitRatio, minPages, maxPages, intervalMillis);
+        sizer.start();
+    }
+
+    /**
+     * Stop resizing this pool on its own; the current size is kept.
+     */
+    public synchronized void disableAdaptiveSizing() {
+        if(sizer != null){
+            sizer.shutdown();
+            sizer = null;
+        }
     }
 
 }
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * BufferPoolMonitor exposes the statistics of the buffer pool over JMX and
+ * formats them for the SHOW BUFFERPOOL console command.
+ * <p>
+ * It always reports on the current buffer pool of the Database, so it only
+ * needs to be registered once even if the pool is replaced.
+ */
+public class BufferPoolMonitor implements BufferPoolMonitorMBean {
+    private static final String OBJECT_NAME = "simpledb:type=BufferPool";
+    private static boolean registered = false;
+
+    /**
+     * Register the monitor with the platform MBean server, if it is not
+     * registered yet.
+     */
+    public static synchronized void register() {
+        if (registered)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(new BufferPoolMonitor(), name);
+            registered = true;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private BufferPool pool() {
+        return Database.getBufferPool();
+    }
+
+    public int getMaxPages() {
+        return pool().getMaxPages();
+    }
+
+    public int getResidentPages() {
+        return pool().getNumPages();
+    }
+
+    public int getDirtyPages() {
+        return pool().getNumDirtyPages();
+    }
+
+    public long getHits() {
+        return pool().getHits();
+    }
+
+    public long getMisses() {
+        return pool().getMisses();
+    }
+
+    public double getHitRatio() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getEvictions() {
+        return pool().getEvictions();
+    }
+
+    public long getPagesWritten() {
+        return pool().getPagesWritten();
+    }
+
+    public String getReadLatency() {
+        return pool().getReadLatency().toString();
+    }
+
+    public String getWriteLatency() {
+        return pool().getWriteLatency().toString();
+    }
+
+    public String[] getTableResidency() {
+        Map<Integer, Integer> residency = pool().getTableResidency();
+        ArrayList<String> entries = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> e : residency.entrySet()) {
+            entries.add(tableName(e.getKey()) + ": " + e.getValue());
+        }
+        Collections.sort(entries);
+        return entries.toArray(new String[0]);
+    }
+
+    public void resetStatistics() {
+        pool().resetStatistics();
+    }
+
+    private static String tableName(int tableId) {
+        try {
+            return Database.getCatalog().getTableName(tableId);
+        } catch (NoSuchElementException e) {
+            return String.valueOf(tableId);
+        }
+    }
+
+    /**
+     * @return a human readable report of the buffer pool statistics
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("pages:      %d resident, %d dirty, %d max%n",
+                getResidentPages(), getDirtyPages(), getMaxPages()));
+        sb.append(String.format("requests:   %d hits, %d misses, hit ratio %.3f%n",
+                getHits(), getMisses(), getHitRatio()));
+        sb.append(String.format("evictions:  %d%n", getEvictions()));
+        sb.append(String.format("writes:     %d pages%n", getPagesWritten()));
+        sb.append(String.format("read time:  %s%n", getReadLatency()));
+        sb.append(String.format("write time: %s%n", getWriteLatency()));
+        sb.append(String.format("residency:%n"));
+        for (String entry : getTableResidency()) {
+            sb.append("  ").append(entry).append(String.format("%n"));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package simpledb;
+
+/**
+ * Management interface of the buffer pool, published over JMX as
+ * simpledb:type=BufferPool.
+ *
+ * @see BufferPoolMonitor
+ */
+public interface BufferPoolMonitorMBean {
+    /** @return the maximum number of pages of the buffer pool */
+    public int getMaxPages();
+
+    /** @return the number of resident pages */
+    public int getResidentPages();
+
+    /** @return the number of resident dirty pages */
+    public int getDirtyPages();
+
+    /** @return the number of page requests served from the pool */
+    public long getHits();
+
+    /** @return the number of page requests that read from disk */
+    public long getMisses();
+
+    /** @return hits / (hits + misses), or 0 if no page was requested */
+    public double getHitRatio();
+
+    /** @return the number of pages evicted */
+    public long getEvictions();
+
+    /** @return the number of pages written back to disk */
+    public long getPagesWritten();
+
+    /** @return a summary of page read latencies */
+    public String getReadLatency();
+
+    /** @return a summary of page write latencies */
+    public String getWriteLatency();
+
+    /** @return one "table: pages" entry per table with resident pages */
+    public String[] getTableResidency();
+
+    /** Set counters and latency histograms back to zero. */
+    public void resetStatistics();
+}
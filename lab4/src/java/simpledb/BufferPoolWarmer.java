@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPoolWarmer refills the BufferPool after a restart from the list of
+ * pages that were resident when the list was saved (see
+ * {@link BufferPool#saveResidentPages}).
+ * <p>
+ * The page ids are sorted by table and page number and split into contiguous
+ * runs, each of them read by its own worker thread, so the disk sees a few
+ * sequential streams instead of random reads. Warm-up stops as soon as the
+ * pool is full; pages that were loaded in the meantime by transactions are
+ * simply skipped.
+ */
+public class BufferPoolWarmer implements Runnable {
+    private final BufferPool bufferPool;
+    private final File hotPagesFile;
+    private final int numThreads;
+    private final AtomicInteger pagesLoaded;
+
+    /**
+     * @param bufferPool the pool to warm up
+     * @param hotPagesFile the list written by BufferPool.saveResidentPages
+     * @param numThreads number of concurrent readers
+     */
+    public BufferPoolWarmer(BufferPool bufferPool, File hotPagesFile, int numThreads) {
+        this.bufferPool = bufferPool;
+        this.hotPagesFile = hotPagesFile;
+        this.numThreads = Math.max(1, numThreads);
+        this.pagesLoaded = new AtomicInteger(0);
+    }
+
+    /**
+     * Write the given page ids to f. The list is written to a temporary file
+     * first, so a crash while saving leaves the previous list in place.
+     */
+    static void writePageList(File f, Collection<PageId> pids) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            dos.writeInt(pids.size());
+            for (PageId pid : pids) {
+                dos.writeInt(pid.getTableId());
+                dos.writeInt(pid.getPageNumber());
+            }
+        } finally {
+            dos.close();
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f))
+                throw new IOException("cannot replace " + f);
+        }
+    }
+
+    /**
+     * Read a page list written by writePageList, sorted by table and page number.
+     * Pages of tables that are no longer in the catalog are dropped.
+     */
+    static List<PageId> readPageList(File f) throws IOException {
+        ArrayList<PageId> pids = new ArrayList<>();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                int tableId = dis.readInt();
+                int pageNo = dis.readInt();
+                try {
+                    DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+                    if (file instanceof HeapFile && pageNo >= ((HeapFile) file).numPages())
+                        continue;
+                } catch (NoSuchElementException e) {
+                    continue;
+                }
+                pids.add(new HeapPageId(tableId, pageNo));
+            }
+        } finally {
+            dis.close();
+        }
+        Collections.sort(pids, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                if (a.getTableId() != b.getTableId())
+                    return Integer.compare(a.getTableId(), b.getTableId());
+                return Integer.compare(a.getPageNumber(), b.getPageNumber());
+            }
+        });
+        return pids;
+    }
+
+    /**
+     * Start warming up in a background daemon thread.
+     * @return the started thread
+     */
+    public Thread start() {
+        Thread t = new Thread(this, "BufferPoolWarmer");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * @return the number of pages put into the pool so far
+     */
+    public int getPagesLoaded() {
+        return pagesLoaded.get();
+    }
+
+    public void run() {
+        if (!hotPagesFile.exists())
+            return;
+        final List<PageId> pids;
+        try {
+            pids = readPageList(hotPagesFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (pids.isEmpty())
+            return;
+
+        ExecutorService readers = Executors.newFixedThreadPool(numThreads);
+        int runLength = (pids.size() + numThreads - 1) / numThreads;
+        for (int start = 0; start < pids.size(); start += runLength) {
+            final List<PageId> run = pids.subList(start, Math.min(pids.size(), start + runLength));
+            readers.submit(new Runnable() {
+                public void run() {
+                    for (PageId pid : run) {
+                        if (bufferPool.isFull())
+                            return;
+                        if (bufferPool.prefetchPage(pid))
+                            pagesLoaded.incrementAndGet();
+                    }
+                }
+            });
+        }
+        readers.shutdown();
+        try {
+            readers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            readers.shutdownNow();
+        }
+        Debug.log("BufferPoolWarmer loaded %d of %d pages", pagesLoaded.get(), pids.size());
+    }
+}
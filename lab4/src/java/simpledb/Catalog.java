@@ -112,6 +112,36 @@ public class Catalog {
         // return null;
     }
 
+    /**
+     * Mark a table read-only, or writable again. The pages of a read-only
+     * table are read without locks, and inserts and deletes on it fail.
+     * Cannot be changed while transactions are writing the table.
+     * @param tableid The id of the table
+     * @param readOnly true to make the table read-only
+     * @throws NoSuchElementException if the table doesn't exist
+     * @throws IllegalStateException if the table has dirty pages in the
+     *     buffer pool, or a transaction holds an IX, SIX or X lock on it
+     */
+    public void setReadOnly(int tableid, boolean readOnly) throws NoSuchElementException {
+        if (!id2Table.containsKey(tableid)) {
+            throw new NoSuchElementException("table id doesn't exist");
+        }
+        if (Database.getBufferPool().isWritten(tableid)) {
+            throw new IllegalStateException("table " + tableid + " is being written");
+        }
+        id2Table.get(tableid).setReadOnly(readOnly);
+    }
+
+    /**
+     * @param tableid The id of the table
+     * @return true if the table is read-only, false if it is writable or
+     *     doesn't exist
+     */
+    public boolean isReadOnly(int tableid) {
+        Table table = id2Table.get(tableid);
+        return table != null && table.isReadOnly();
+    }
+
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
         return id2Table.keySet().iterator();
@@ -136,7 +166,9 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A line may end with "readonly" after the field list to add the table read-only.
      * @param catalogFile
+     * @throws IllegalArgumentException if a line has an unknown table option
      */
     public void loadSchema(String catalogFile) {
         String line = "";
@@ -173,12 +205,20 @@ public class Catalog {
                         }
                     }
                 }
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                boolean readOnly = options.equalsIgnoreCase("readonly");
+                if (!readOnly && !options.isEmpty())
+                    throw new IllegalArgumentException("Unknown table option " + options
+                            + " in catalog entry : " + line);
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
-                System.out.println("Added table : " + name + " with schema " + t);
+                if (readOnly)
+                    setReadOnly(tabHf.getId(), true);
+                System.out.println("Added table : " + name + " with schema " + t
+                        + (isReadOnly(tabHf.getId()) ? " (read-only)" : ""));
             }
         } catch (IOException e) {
             e.printStackTrace();
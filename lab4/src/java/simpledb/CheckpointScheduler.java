@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * CheckpointScheduler is a background thread that takes a checkpoint of a
+ * LogFile when a given time has elapsed, or a given number of bytes have
+ * been logged, since the last checkpoint.
+ * <p>
+ * Checkpoints are fuzzy (see {@link LogFile#logCheckpoint}), so they do not
+ * stop transactions, and the time recovery spends redoing the log is
+ * bounded by how often they are taken. Nothing is done until the log is
+ * either recovered or appended to, since the first append truncates a log
+ * that was not recovered.
+ *
+ * @see LogFile#enableCheckpointScheduler
+ */
+public class CheckpointScheduler extends Thread {
+    /** Longest time between two looks at the log. */
+    private static final long MAX_POLL_MILLIS = 100;
+
+    private final LogFile log;
+    private final long intervalMillis;
+    private final long maxLogBytes;
+    private volatile boolean running;
+    private volatile int checkpoints;
+
+    /**
+     * @param log the log to checkpoint
+     * @param intervalMillis longest time between two checkpoints, 0 for no limit
+     * @param maxLogBytes most log bytes between two checkpoints, 0 for no limit
+     */
+    public CheckpointScheduler(LogFile log, long intervalMillis, long maxLogBytes) {
+        super("CheckpointScheduler");
+        if (intervalMillis < 0 || maxLogBytes < 0)
+            throw new IllegalArgumentException("negative checkpoint interval");
+        if (intervalMillis == 0 && maxLogBytes == 0)
+            throw new IllegalArgumentException("checkpoint interval and log size both unlimited");
+        this.log = log;
+        this.intervalMillis = intervalMillis;
+        this.maxLogBytes = maxLogBytes;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    /** Stop taking checkpoints. */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    /**
+     * @return the number of checkpoints taken by this scheduler
+     */
+    public int getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * @return true if a checkpoint is due now
+     */
+    boolean isDue() {
+        if (log.isRecoveryUndecided())
+            return false;
+        if (intervalMillis > 0
+                && System.currentTimeMillis() - log.getLastCheckpointMillis() >= intervalMillis)
+            return true;
+        return maxLogBytes > 0
+                && log.getCurrentLsn() - log.getLastCheckpointLsn() >= maxLogBytes;
+    }
+
+    public void run() {
+        long poll = intervalMillis > 0 ? Math.min(intervalMillis, MAX_POLL_MILLIS) : MAX_POLL_MILLIS;
+        while (running) {
+            try {
+                Thread.sleep(poll);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (!running || !isDue())
+                continue;
+            try {
+                log.logCheckpoint();
+                checkpoints++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
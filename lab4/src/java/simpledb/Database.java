@@ -20,10 +20,25 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final AdmissionController _admission;
+
+    // resident pages saved at checkpoints and shutdown, used to warm up the buffer pool
+    private final static String HOTPAGESFILENAME = "hotpages";
+
+    /**
+     * System property holding the size in bytes of an off-heap buffer pool,
+     * for example -Dsimpledb.OffHeapBytes=4294967296. When it is not set the
+     * buffer pool holds BufferPool.DEFAULT_PAGES pages on the heap.
+     */
+    private final static String OFFHEAP_BYTES_PROPERTY = "simpledb.OffHeapBytes";
 
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        String offHeapBytes = System.getProperty(OFFHEAP_BYTES_PROPERTY);
+        if (offHeapBytes == null)
+            _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        else
+            _bufferpool = new BufferPool(Long.parseLong(offHeapBytes), true);
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -32,6 +47,14 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        long checkpointInterval = Long.getLong(LogFile.CHECKPOINT_INTERVAL_PROPERTY, 0);
+        long checkpointLogBytes = Long.getLong(LogFile.CHECKPOINT_LOG_BYTES_PROPERTY, 0);
+        if (checkpointInterval > 0 || checkpointLogBytes > 0)
+            _logfile.enableCheckpointScheduler(checkpointInterval, checkpointLogBytes);
+        _admission = new AdmissionController(Boolean.getBoolean(AdmissionController.ADMISSION_CONTROL_PROPERTY),
+                Integer.getInteger(AdmissionController.MAX_ACTIVE_PROPERTY, AdmissionController.DEFAULT_MAX_ACTIVE));
+        BufferPoolMonitor.register();
+        LockManagerMonitor.register();
         // startControllerThread();
     }
 
@@ -45,6 +68,16 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the admission controller of the static Database instance */
+    public static AdmissionController getAdmissionController() {
+        return _instance.get()._admission;
+    }
+
+    /** Return the file listing the pages to prefetch into the buffer pool on startup */
+    public static File getHotPagesFile() {
+        return new File(HOTPAGESFILENAME);
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -55,11 +88,25 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return setBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * sized by a memory budget and return it
+     *
+     * @see BufferPool#BufferPool(long, boolean)
+     */
+    public static BufferPool resetBufferPool(long budgetBytes, boolean offHeap) {
+        return setBufferPool(new BufferPool(budgetBytes, offHeap));
+    }
+
+    private static BufferPool setBufferPool(BufferPool bufferPool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,6 +122,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        _instance.get()._logfile.disableCheckpointScheduler();
+        _instance.get()._logfile.disableLogFlusher();
         _instance.set(new Database());
     }
 
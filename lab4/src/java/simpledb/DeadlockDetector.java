@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * DeadlockDetector is a deadlock policy that lets every request wait right
+ * away and looks for deadlocks in a background thread instead.
+ * <p>
+ * The waits-for graph is kept as transactions start and stop waiting. Every
+ * interval the detector brings the edges of the waiting transactions up to
+ * date from the lock queues, searches the graph for cycles and aborts one
+ * victim per cycle. When deadlocks are rare this takes the cycle search off
+ * the lock acquire path, at the price of deadlocked transactions waiting up
+ * to an interval before one of them is aborted.
+ * <p>
+ * The thread is started by the first request that has to wait.
+ */
+public class DeadlockDetector extends Thread implements DeadlockPolicy {
+    private final LockManager lockManager;
+    private final long intervalMillis;
+    private final WaitsForGraphPolicy.Victim victim;
+    // waiting transaction -> transactions it waits for
+    private final ConcurrentHashMap<TransactionId, Set<TransactionId>> waitsFor;
+    private final AtomicBoolean started;
+    private volatile boolean running;
+    private volatile long deadlocks;
+
+    /**
+     * @param lockManager the lock manager whose requests are checked
+     * @param intervalMillis time between two searches
+     * @param victim how to choose the transaction to abort in a cycle
+     */
+    public DeadlockDetector(LockManager lockManager, long intervalMillis, WaitsForGraphPolicy.Victim victim) {
+        super("DeadlockDetector");
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("detection interval must be positive");
+        this.lockManager = lockManager;
+        this.intervalMillis = intervalMillis;
+        this.victim = victim;
+        this.waitsFor = new ConcurrentHashMap<>();
+        this.started = new AtomicBoolean(false);
+        this.running = true;
+        setDaemon(true);
+    }
+
+    public void beforeWait(LockManager lockManager, TransactionId tid, Set<TransactionId> blockers) {
+        waitsFor.put(tid, blockers);
+        if (running && started.compareAndSet(false, true))
+            start();
+    }
+
+    public void afterWait(LockManager lockManager, TransactionId tid) {
+        waitsFor.remove(tid);
+    }
+
+    /** Stop the detector thread. */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    /**
+     * @return the number of deadlocks found since the detector was created
+     */
+    public long getDeadlocksFound() {
+        return deadlocks;
+    }
+
+    /**
+     * Search the waits-for graph once and abort a victim in each cycle.
+     * @return the number of transactions aborted
+     */
+    int detect() {
+        HashMap<TransactionId, Set<TransactionId>> graph = new HashMap<>();
+        for (TransactionId tid : waitsFor.keySet()) {
+            Set<TransactionId> blockers = lockManager.getBlockers(tid);
+            if (blockers.isEmpty())
+                continue;
+            waitsFor.replace(tid, blockers);
+            graph.put(tid, blockers);
+        }
+
+        int aborted = 0;
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null) {
+            TransactionId chosen = WaitsForGraphPolicy.chooseVictim(lockManager, victim, cycle);
+            Debug.log("deadlock between %d transactions, aborting %d", cycle.size(), chosen.getId());
+            deadlocks++;
+            lockManager.abortTransaction(chosen);
+            graph.remove(chosen);
+            aborted++;
+        }
+        return aborted;
+    }
+
+    /**
+     * @return the transactions of a cycle of graph, or null if there is none
+     */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph) {
+        HashSet<TransactionId> visited = new HashSet<>();
+        for (TransactionId start : graph.keySet()) {
+            List<TransactionId> cycle = findCycle(graph, start, new ArrayList<>(), visited);
+            if (cycle != null)
+                return cycle;
+        }
+        return null;
+    }
+
+    /**
+     * depth first search from tid
+     * @param path: the transactions from the start of the search to tid
+     * @param visited: transactions already searched
+     * @return the transactions of a cycle, or null if none is reachable
+     */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph, TransactionId tid,
+                                                 ArrayList<TransactionId> path, HashSet<TransactionId> visited) {
+        int pos = path.indexOf(tid);
+        if (pos >= 0)
+            return new ArrayList<>(path.subList(pos, path.size()));
+        if (!visited.add(tid))
+            return null;
+        Set<TransactionId> edges = graph.get(tid);
+        if (edges == null)
+            return null;
+        path.add(tid);
+        for (TransactionId w : edges) {
+            List<TransactionId> cycle = findCycle(graph, w, path, visited);
+            if (cycle != null)
+                return cycle;
+        }
+        path.remove(path.size() - 1);
+        return null;
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (!running)
+                break;
+            if (!waitsFor.isEmpty())
+                detect();
+        }
+    }
+}
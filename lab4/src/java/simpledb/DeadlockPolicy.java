@@ -0,0 +1,43 @@
+package simpledb;
+
+import java.util.Set;
+
+/**
+ * DeadlockPolicy decides what happens when a lock request cannot be granted
+ * right away. The LockManager queues the request, then asks the policy
+ * before the requesting thread starts waiting. The policy can let it wait,
+ * abort the requester, or abort other transactions through the LockManager.
+ *
+ * @see WaitsForGraphPolicy
+ * @see WaitDiePolicy
+ * @see WoundWaitPolicy
+ * @see DeadlockDetector
+ */
+public interface DeadlockPolicy {
+    /**
+     * Called when tid has to wait for a lock.
+     *
+     * @param lockManager the lock manager the request is queued in
+     * @param tid the transaction that has to wait
+     * @param blockers the transactions it waits for
+     * @throws TransactionAbortedException if tid must abort instead of waiting
+     */
+    public void beforeWait(LockManager lockManager, TransactionId tid, Set<TransactionId> blockers)
+        throws TransactionAbortedException;
+
+    /**
+     * Called when tid stops waiting, because its request was granted or
+     * withdrawn.
+     *
+     * @param lockManager the lock manager the request was queued in
+     * @param tid the transaction that waited
+     */
+    public default void afterWait(LockManager lockManager, TransactionId tid) {
+    }
+
+    /**
+     * Called when the policy is replaced, to stop its background work.
+     */
+    public default void shutdown() {
+    }
+}
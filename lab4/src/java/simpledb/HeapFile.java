@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -9,6 +11,12 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * The page LSNs are kept out of the pages, in a file named after the heap
+ * file followed by ".lsn": the id of the log that stamped them, then one
+ * long per page number, the page LSN plus one, so that 0 stands for a page
+ * LSN that is not known. They are written after the pages they belong to,
+ * a crash in between leaves an older LSN, and recovery redoes more.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -17,6 +25,9 @@ public class HeapFile implements DbFile {
     private TupleDesc td;
     private File file;
     private int fileId;
+    private final File lsnFile;
+    private final Object lsnLock = new Object();
+    private static final int LSN_HEADER_SIZE = 8;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -30,6 +41,7 @@ public class HeapFile implements DbFile {
         this.td = td;
         this.file = f;
         fileId = f.getAbsoluteFile().hashCode();
+        lsnFile = new File(f.getPath() + ".lsn");
     }
 
     /**
@@ -86,7 +98,9 @@ public class HeapFile implements DbFile {
             rafReader.read(pageData, 0, bytesPerPage);
 
             rafReader.close();
-            return new HeapPage(new HeapPageId(pid.getTableId(), pageNumber), pageData);
+            HeapPage page = new HeapPage(new HeapPageId(pid.getTableId(), pageNumber), pageData);
+            page.setLsn(readPageLsn(pageNumber));
+            return page;
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -106,12 +120,100 @@ public class HeapFile implements DbFile {
 //            pageData = page.getPageData();
             rafRw.write(page.getPageData(), 0, bytesPerPage);
             rafRw.close();
+            writePageLsns(Collections.singletonList(page));
         } catch (IOException e){
             e.printStackTrace();
         }
 
     }
 
+    /**
+     * Push several pages of this file to disk with as few system calls as
+     * possible: pages with consecutive page numbers are written together by
+     * one gathering write.
+     *
+     * @param pages pages of this file, sorted by page number
+     * @throws IOException if the write fails
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        int bytesPerPage = BufferPool.getPageSize();
+        RandomAccessFile rafRw = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = rafRw.getChannel();
+            int start = 0;
+            while (start < pages.size()) {
+                // find the run of adjacent pages starting at start
+                int end = start + 1;
+                while (end < pages.size() && pages.get(end).getId().getPageNumber()
+                        == pages.get(end - 1).getId().getPageNumber() + 1)
+                    end++;
+                ByteBuffer[] run = new ByteBuffer[end - start];
+                long remaining = 0;
+                for (int i = start; i < end; i++) {
+                    run[i - start] = ByteBuffer.wrap(pages.get(i).getPageData(), 0, bytesPerPage);
+                    remaining += bytesPerPage;
+                }
+                channel.position((long) bytesPerPage * pages.get(start).getId().getPageNumber());
+                while (remaining > 0)
+                    remaining -= channel.write(run);
+                start = end;
+            }
+        } finally {
+            rafRw.close();
+        }
+        writePageLsns(pages);
+    }
+
+    /**
+     * @param pageNumber: a page of this file
+     * @return the page LSN stored with the last write of the page, or
+     *   PageCodecs.NO_PAGE_LSN if it was not written under the current log
+     */
+    long readPageLsn(int pageNumber) throws IOException {
+        synchronized (lsnLock) {
+            if (!lsnFile.exists())
+                return PageCodecs.NO_PAGE_LSN;
+            RandomAccessFile raf = new RandomAccessFile(lsnFile, "r");
+            try {
+                long pos = LSN_HEADER_SIZE + 8L * pageNumber;
+                if (raf.length() < pos + 8 || raf.readLong() != Database.getLogFile().getLogId())
+                    return PageCodecs.NO_PAGE_LSN;
+                raf.seek(pos);
+                return raf.readLong() + PageCodecs.NO_PAGE_LSN;
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Store the page LSNs of pages just written. The LSNs stamped under
+     * another log are dropped first.
+     */
+    private void writePageLsns(List<Page> pages) throws IOException {
+        synchronized (lsnLock) {
+            boolean stamped = false;
+            for (Page page : pages)
+                stamped |= ((HeapPage) page).getLsn() != PageCodecs.NO_PAGE_LSN;
+            if (!stamped && !lsnFile.exists())
+                return;
+            long logId = Database.getLogFile().getLogId();
+            RandomAccessFile raf = new RandomAccessFile(lsnFile, "rw");
+            try {
+                if (raf.length() < LSN_HEADER_SIZE || raf.readLong() != logId) {
+                    raf.setLength(0);
+                    raf.writeLong(logId);
+                }
+                for (Page page : pages) {
+                    raf.seek(LSN_HEADER_SIZE + 8L * page.getId().getPageNumber());
+                    raf.writeLong(((HeapPage) page).getLsn() - PageCodecs.NO_PAGE_LSN);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -121,20 +223,26 @@ public class HeapFile implements DbFile {
     }
 
     // see DbFile.java for javadocs
+    // takes IX on the page written and X on the record, transactions
+    // changing other records of the page do not wait for each other
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
 //        return null;
         // not necessary for lab1
+        BufferPool bp = Database.getBufferPool();
         ArrayList<Page> res = new ArrayList<>();
         for(int i = 0; i < numPages(); i++){
             PageId pid = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            HeapPage page = (HeapPage) bp.getPage(tid, pid, LockMode.IS);
 
-            // if the current page has empty slots, then insert in this page
-            if(page.getNumEmptySlots() > 0){
-                page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                page.insertTuple(t);
+            // if the current page has empty slots, then insert in this page;
+            // another transaction may fill them first, the next page is tried then
+            if(page.getNumEmptySlots(tid) > 0){
+                page = (HeapPage) bp.getPage(tid, pid, LockMode.IX);
+                if(!page.insertTuple(tid, t))
+                    continue;
+                bp.lockRecord(tid, t.getRecordId(), LockMode.X);
                 res.add(page);
                 return res;
             }
@@ -142,8 +250,9 @@ public class HeapFile implements DbFile {
         // no empty page, now to create new page
         HeapPageId pid = new HeapPageId(getId(), numPages());
         HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
-        page.insertTuple(t);
+        page.insertTuple(tid, t);
         writePage(page);
+        bp.lockRecord(tid, t.getRecordId(), LockMode.X);
         res.add(page);
         return res;
 
@@ -151,6 +260,7 @@ public class HeapFile implements DbFile {
     }
 
     // see DbFile.java for javadocs
+    // takes X on the record and IX on its page
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
@@ -161,8 +271,9 @@ public class HeapFile implements DbFile {
         // delete tuple with given valid rid
         PageId pid = t.getRecordId().getPageId();
         ArrayList<Page> res = new ArrayList<>();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-        page.deleteTuple(t);
+        Database.getBufferPool().lockRecord(tid, t.getRecordId(), LockMode.X);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, LockMode.IX);
+        page.deleteTuple(tid, t);
         res.add(page);
         return res;
 
@@ -35,9 +35,18 @@ public class HeapFileIterator implements DbFileIterator{
         }
         // construct page id
         PageId pid = new HeapPageId(file.getId(), pageNo);
-        // get page from buffer pool
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-        return page.iterator();
+        // get page from buffer pool, with IS on the page and S on each
+        // record read: writers of the other records of the page go on
+        BufferPool bp = Database.getBufferPool();
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, LockMode.IS);
+        if (!bp.takesLocks(tid, file.getId()))
+            return page.iterator();
+        int[] slots = page.getSlotsToLock(tid);
+        for (int slot : slots)
+            bp.lockRecord(tid, new RecordId(pid, slot), LockMode.S);
+        // fetched again, the page may have been dropped while we waited
+        page = (HeapPage) bp.getPage(tid, pid, LockMode.IS);
+        return page.iterator(slots);
 //        List<Tuple> tupleList = new ArrayList<>();
 //        Iterator<Tuple> it = pg.iterator();
 //        while(it.hasNext()) {
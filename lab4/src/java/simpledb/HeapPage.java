@@ -2,11 +2,20 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.BitSet;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Several transactions may change different slots of a page at once, each
+ * under a lock on its records (see BufferPool#lockRecord). The page keeps
+ * the transaction that changed each slot until it completes, so that one
+ * of them commits or rolls back its slots without the others': the before
+ * image is the last committed image, and a transaction commits the before
+ * image with its own slots, see {@link #getCommitImage}. A slot changed by
+ * a running transaction is not reused by another one.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,14 +25,31 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
-
-    byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
-
-    private TransactionId lastDirty; // the last transaction that makes page dirty
+    private final int headerSize;
+
+    // the page image the header bits and tuples are decoded from: a heap
+    // buffer, or an off-heap frame while the BufferPool lends one, see attachFrame
+    private ByteBuffer data; // guarded by dataLock
+    // true if data wraps the before image of another page, it is copied before a write
+    private boolean shared; // guarded by dataLock
+    // the before image, null while it is the same as data: it is only kept
+    // once the page is modified, and the array is never written to
+    private byte[] oldData; // guarded by dataLock
+    private final Object dataLock = new Object();
+
+    // transactions that dirtied the page and have not completed, the one
+    // that dirtied it last at the end
+    private final LinkedHashSet<TransactionId> dirtiers = new LinkedHashSet<>(); // guarded by dataLock
+    // the running transaction that changed each slot, null for a slot that
+    // holds its committed value; null while no transaction changed a slot
+    private TransactionId[] owners; // guarded by dataLock
+    // true if slots were changed without a transaction, they belong to the
+    // next transaction marking the page dirty
+    private boolean unowned; // guarded by dataLock
+    // LSN of the last logged update the page holds, kept by the HeapFile
+    // next to the page rather than in its image, see HeapFile#readPageLsn
+    private long lsn = PageCodecs.NO_PAGE_LSN; // guarded by dataLock
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -37,6 +63,7 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps its bytes and decodes tuples when they are asked for.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -45,24 +72,29 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        byte[] image = new byte[BufferPool.getPageSize()];
+        System.arraycopy(data, 0, image, 0, Math.min(data.length, image.length));
+        this.data = ByteBuffer.wrap(image);
+        // the bytes of empty slots and the padding read back as zeroes
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                Arrays.fill(image, slotOffset(i), slotOffset(i) + td.getSize(), (byte) 0);
         }
-        dis.close();
+        Arrays.fill(image, slotOffset(numSlots), image.length, (byte) 0);
+    }
 
-        setBeforeImage();
+    /**
+     * Create a page over the before image of another page, without copying it.
+     * @param image: a before image, which is never written to
+     */
+    private HeapPage(HeapPageId id, TupleDesc td, byte[] image) {
+        this.pid = id;
+        this.td = td;
+        this.numSlots = getNumTuples();
+        this.headerSize = getHeaderSize();
+        this.data = ByteBuffer.wrap(image);
+        this.shared = true;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -85,29 +117,318 @@ public class HeapPage implements Page {
         return (int) Math.ceil(getNumTuples() / 8.0);
                  
     }
+
+    /** @return the offset of a tuple slot in the page image */
+    private int slotOffset(int slot) {
+        return headerSize + slot * td.getSize();
+    }
+
+    /** @return a copy of the bytes of buf, from 0 to its capacity */
+    private static byte[] copyOf(ByteBuffer buf) {
+        byte[] copy = new byte[buf.capacity()];
+        ByteBuffer view = buf.duplicate();
+        view.clear();
+        view.get(copy);
+        return copy;
+    }
+
+    /**
+     * Keep the before image and get a private copy of the page image before
+     * the page is modified. Called under dataLock.
+     */
+    private void beforeWrite() {
+        if (oldData == null)
+            oldData = shared ? data.array() : copyOf(data);
+        if (shared) {
+            data = ByteBuffer.wrap(copyOf(data));
+            shared = false;
+        }
+    }
     
     /** Return a view of this page before it was modified
-        -- used by recovery */
+        -- used by recovery. The image is only copied if the page was not
+        modified since its before image was set. */
     public HeapPage getBeforeImage(){
-        try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
+        synchronized(dataLock)
+        {
+            return new HeapPage(pid, td, oldData != null ? oldData : copyOf(data));
         }
-        return null;
     }
     
     public void setBeforeImage() {
-        synchronized(oldDataLock)
+        synchronized(dataLock)
+        {
+            oldData = null;
+        }
+    }
+
+    /**
+     * @return the LSN of the last logged update of this page, or
+     *   PageCodecs.NO_PAGE_LSN if it is not known; recovery skips the
+     *   records up to it, the page holds their changes already
+     */
+    public long getLsn() {
+        synchronized(dataLock)
+        {
+            return lsn;
+        }
+    }
+
+    /**
+     * @param lsn: the LSN of the log record of the latest update of this page
+     */
+    public void setLsn(long lsn) {
+        synchronized(dataLock)
+        {
+            this.lsn = lsn;
+        }
+    }
+
+    /**
+     * Set the before image of a page read back from disk after its
+     * uncommitted image was written there. The slots that differ from it
+     * belong to the next transaction marking the page dirty.
+     * @param image: the last committed image of this page, never written to afterwards
+     */
+    void setBeforeImage(byte[] image) {
+        synchronized(dataLock)
         {
-        oldData = getPageData().clone();
+            oldData = image;
+            unowned = true;
+        }
+    }
+
+    /**
+     * Copy the header bit and the bytes of a slot from one page image to another.
+     */
+    private void copySlot(int slot, ByteBuffer from, ByteBuffer to) {
+        int bit = 1 << (slot % 8);
+        int header = to.get(slot / 8) & ~bit | from.get(slot / 8) & bit;
+        to.put(slot / 8, (byte) header);
+        for (int i = slotOffset(slot); i < slotOffset(slot + 1); i++)
+            to.put(i, from.get(i));
+    }
+
+    /**
+     * @return true if a slot differs from the before image. Called under dataLock.
+     */
+    private boolean isSlotChanged(int slot) {
+        if (oldData == null)
+            return false;
+        int bit = 1 << (slot % 8);
+        if (((data.get(slot / 8) ^ oldData[slot / 8]) & bit) != 0)
+            return true;
+        for (int i = slotOffset(slot); i < slotOffset(slot + 1); i++) {
+            if (data.get(i) != oldData[i])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record that tid changed a slot and dirtied the page. A null tid leaves
+     * the slot to the next transaction marking the page dirty. Called under dataLock.
+     */
+    private void changeSlot(TransactionId tid, int slot) {
+        if (tid == null) {
+            unowned = true;
+            return;
+        }
+        if (owners == null)
+            owners = new TransactionId[numSlots];
+        owners[slot] = tid;
+        dirtiers.remove(tid);
+        dirtiers.add(tid);
+    }
+
+    /**
+     * @return true if a running transaction other than tid changed a slot. Called under dataLock.
+     */
+    private boolean isChangedByOther(TransactionId tid, int slot) {
+        return owners != null && owners[slot] != null && !owners[slot].equals(tid);
+    }
+
+    /**
+     * @return the page image with the slots of the given transactions taken
+     *   from the current image, and the others from the before image. Called under dataLock.
+     */
+    private byte[] imageWith(Collection<TransactionId> tids) {
+        byte[] image = oldData.clone();
+        ByteBuffer to = ByteBuffer.wrap(image);
+        for (int i = 0; owners != null && i < numSlots; i++) {
+            if (owners[i] != null && tids.contains(owners[i]))
+                copySlot(i, data, to);
+        }
+        return image;
+    }
+
+    /**
+     * @return a page over image, with before as its before image, dirtied by tid
+     */
+    private HeapPage newImage(byte[] image, byte[] before, TransactionId tid) {
+        HeapPage page = new HeapPage(pid, td, image);
+        page.shared = false;
+        page.oldData = before;
+        page.dirtiers.add(tid);
+        return page;
+    }
+
+    /**
+     * @param tid: a transaction that dirtied this page
+     * @return this page as it is once tid commits: the before image with
+     *   the slots tid changed. It is this page if no other running
+     *   transaction dirtied it, otherwise a copy dirtied by tid alone.
+     */
+    public HeapPage getCommitImage(TransactionId tid) {
+        synchronized(dataLock)
+        {
+            if (oldData == null || dirtiers.size() <= 1)
+                return this;
+            return newImage(imageWith(Collections.singleton(tid)), oldData, tid);
+        }
+    }
+
+    /**
+     * Split the changes of the running transactions into one page per
+     * transaction, for the log: each is dirtied by one transaction and adds
+     * its slots to the page before it, the first one to the before image
+     * and the last one is the current image.
+     * @return the pages, in the order the transactions first dirtied this
+     *   page; only this page if a single transaction dirtied it
+     */
+    public List<HeapPage> getUpdatesByTransaction() {
+        synchronized(dataLock)
+        {
+            if (oldData == null || dirtiers.size() <= 1)
+                return Collections.singletonList(this);
+            ArrayList<HeapPage> updates = new ArrayList<>();
+            ArrayList<TransactionId> done = new ArrayList<>();
+            byte[] before = oldData;
+            for (TransactionId tid : dirtiers) {
+                done.add(tid);
+                byte[] image = done.size() == dirtiers.size() ? copyOf(data) : imageWith(done);
+                updates.add(newImage(image, before, tid));
+                before = image;
+            }
+            return updates;
+        }
+    }
+
+    /**
+     * The changes of tid are committed: they become part of the before
+     * image. The page is clean once no running transaction dirtied it.
+     * @param tid: a transaction that dirtied this page
+     */
+    public void commit(TransactionId tid) {
+        synchronized(dataLock)
+        {
+            dirtiers.remove(tid);
+            if (dirtiers.isEmpty()) {
+                oldData = null;
+                owners = null;
+                unowned = false;
+                return;
+            }
+            if (oldData != null)
+                oldData = imageWith(Collections.singleton(tid));
+            releaseSlots(tid);
+        }
+    }
+
+    /**
+     * Put the slots tid changed back to the before image. The page is clean
+     * once no running transaction dirtied it.
+     * @param tid: a transaction that dirtied this page
+     */
+    public void rollback(TransactionId tid) {
+        synchronized(dataLock)
+        {
+            dirtiers.remove(tid);
+            if (dirtiers.isEmpty()) {
+                if (oldData != null) {
+                    ByteBuffer view = data.duplicate();
+                    view.clear();
+                    view.put(oldData);
+                }
+                oldData = null;
+                owners = null;
+                unowned = false;
+                return;
+            }
+            for (int i = 0; owners != null && oldData != null && i < numSlots; i++) {
+                if (tid.equals(owners[i]))
+                    copySlot(i, ByteBuffer.wrap(oldData), data);
+            }
+            releaseSlots(tid);
+        }
+    }
+
+    /**
+     * Forget the slots tid changed. Called under dataLock.
+     */
+    private void releaseSlots(TransactionId tid) {
+        for (int i = 0; owners != null && i < numSlots; i++) {
+            if (tid.equals(owners[i]))
+                owners[i] = null;
+        }
+    }
+
+    /**
+     * @return true if tid dirtied this page and did not complete yet
+     */
+    public boolean isDirtiedBy(TransactionId tid) {
+        synchronized(dataLock)
+        {
+            return dirtiers.contains(tid);
+        }
+    }
+
+    /**
+     * @return the running transactions that dirtied this page
+     */
+    public Set<TransactionId> getDirtiers() {
+        synchronized(dataLock)
+        {
+            return new HashSet<>(dirtiers);
+        }
+    }
+
+    /**
+     * Move the page image into the given off-heap frame. While the frame is
+     * attached the page keeps no on-heap copy of its image: header bits and
+     * tuples are read from and written to the frame. Only the before image
+     * of a modified page stays on the heap.
+     * @param frame: a view over exactly one page of off-heap memory
+     * @return false if the frame does not have the size of this page
+     */
+    boolean attachFrame(ByteBuffer frame) {
+        synchronized(dataLock)
+        {
+            if (data.isDirect() || frame.capacity() != data.capacity())
+                return false;
+            ByteBuffer view = frame.duplicate();
+            view.clear();
+            ByteBuffer src = data.duplicate();
+            src.clear();
+            view.put(src);
+            if (shared && oldData == null)
+                oldData = data.array(); // still the before image of this page
+            data = frame;
+            shared = false;
+            return true;
+        }
+    }
+
+    /**
+     * Copy the page image back onto the heap and stop using the frame, so
+     * that the frame can be handed to another page.
+     */
+    void detachFrame() {
+        synchronized(dataLock)
+        {
+            if (!data.isDirect())
+                return;
+            data = ByteBuffer.wrap(copyOf(data));
         }
     }
 
@@ -121,21 +442,13 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple of a used slot from the page image. Called under dataLock.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        ByteBuffer view = data.duplicate();
+        view.limit(slotOffset(slotId) + td.getSize());
+        view.position(slotOffset(slotId));
+        DataInputStream dis = new DataInputStream(new ByteBufferInputStream(view));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -154,6 +467,27 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /** reads the bytes of a tuple slot */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining())
+                return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -166,64 +500,10 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        synchronized(dataLock)
+        {
+            return copyOf(data);
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -250,15 +530,35 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+        deleteTuple(null, t);
+    }
+
+    /**
+     * Delete the specified tuple from the page on behalf of a transaction,
+     * which dirties the page. The transaction must hold an exclusive lock
+     * on the record.
+     * @throws DbException if this tuple is not on this page, its slot is
+     *         already empty, or another running transaction changed it.
+     * @param tid The transaction deleting the tuple, null for none
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(TransactionId tid, Tuple t) throws DbException {
         if(t.getRecordId().getPageId() == null
                 ||!t.getRecordId().getPageId().equals(pid))
             throw new DbException("tuple is not on this page");
         else {
             int slotNum = t.getRecordId().getTupleNumber();
-            if(!isSlotUsed(slotNum))
-                throw new DbException("tuple slot is already empty");
-            markSlotUsed(slotNum, false);
-            tuples[slotNum] = null;
+            synchronized (dataLock) {
+                if(!isSlotUsed(slotNum))
+                    throw new DbException("tuple slot is already empty");
+                if(isChangedByOther(tid, slotNum))
+                    throw new DbException("tuple is changed by another transaction");
+                beforeWrite();
+                markSlotUsed(slotNum, false);
+                for(int i = slotOffset(slotNum); i < slotOffset(slotNum + 1); i++)
+                    data.put(i, (byte) 0);
+                changeSlot(tid, slotNum);
+            }
         }
     }
 
@@ -274,21 +574,46 @@ public class HeapPage implements Page {
         // not necessary for lab1
 //        if(t.getRecordId() == null)
 //            throw new DbException("rid is invalid, cannot insert tuple");
-        if(getNumEmptySlots() == 0)
+        if(!insertTuple(null, t))
             throw new DbException("page is full, no space for insertion");
+    }
+
+    /**
+     * Adds the specified tuple to the page on behalf of a transaction, which
+     * dirties the page. Slots that another running transaction emptied are
+     * not reused, it may still roll back.
+     * @throws DbException if the tupledesc is mismatch.
+     * @param tid The transaction adding the tuple, null for none
+     * @param t The tuple to add.
+     * @return false if the page has no empty slot for tid
+     */
+    public boolean insertTuple(TransactionId tid, Tuple t) throws DbException {
         if(!t.getTupleDesc().equals(td))
             throw new DbException("tuple description doesn't match");
-        else {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for(int j = 0; j < td.numFields(); j++)
+                t.getField(j).serialize(dos);
+        } catch (IOException e) {
+            throw new DbException("cannot serialize tuple: " + e.getMessage());
+        }
+        byte[] bytes = baos.toByteArray();
+        synchronized (dataLock) {
             for(int i = 0; i < numSlots; i++){
-                if(!isSlotUsed(i)){
-                    t.setRecordId(new RecordId(getId(), i));
-                    tuples[i] = t;
+                if(!isSlotUsed(i) && !isChangedByOther(tid, i)){
+                    beforeWrite();
+                    ByteBuffer view = data.duplicate();
+                    view.position(slotOffset(i));
+                    view.put(bytes, 0, Math.min(bytes.length, td.getSize()));
                     markSlotUsed(i, true);
-                    return;
+                    changeSlot(tid, i);
+                    t.setRecordId(new RecordId(getId(), i));
+                    return true;
                 }
             }
         }
-
+        return false;
     }
 
     /**
@@ -298,11 +623,22 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	// not necessary for lab1
-        if(dirty){
-            lastDirty = tid;
-        }
-        else {
-            lastDirty = null;
+        synchronized (dataLock) {
+            if(dirty){
+                dirtiers.remove(tid);
+                dirtiers.add(tid);
+                // slots changed without a transaction are tid's
+                for(int i = 0; unowned && i < numSlots; i++){
+                    if((owners == null || owners[i] == null) && isSlotChanged(i))
+                        changeSlot(tid, i);
+                }
+                unowned = false;
+            }
+            else {
+                dirtiers.clear();
+                owners = null;
+                unowned = false;
+            }
         }
     }
 
@@ -312,7 +648,12 @@ public class HeapPage implements Page {
     public TransactionId isDirty() {
         // some code goes here
 	// Not necessary for lab1
-        return lastDirty;
+        synchronized (dataLock) {
+            TransactionId last = null;
+            for (TransactionId tid : dirtiers)
+                last = tid;
+            return last;
+        }
     }
 
     /**
@@ -321,9 +662,27 @@ public class HeapPage implements Page {
     public int getNumEmptySlots() {
         // some code goes here
         int count = 0;
-        for (int i = 0; i < numSlots; i++) {
-            if(!isSlotUsed(i)) {
-                count++;
+        synchronized (dataLock) {
+            for (int i = 0; i < numSlots; i++) {
+                if(!isSlotUsed(i)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of empty slots on this page tid may insert into:
+     * slots another running transaction emptied are not counted.
+     */
+    public int getNumEmptySlots(TransactionId tid) {
+        int count = 0;
+        synchronized (dataLock) {
+            for (int i = 0; i < numSlots; i++) {
+                if(!isSlotUsed(i) && !isChangedByOther(tid, i)) {
+                    count++;
+                }
             }
         }
         return count;
@@ -334,13 +693,16 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        if (i < 0 || i > numSlots) { return false; }
+        if (i < 0 || i >= numSlots) { return false; }
         // check the head bit
         int headIdx = i / 8; // the bit indicator locates in which byte of headers
         int headBitOffset = i % 8; // which bit it locates at header[headIdx] starting from left
         // headBitOffset = (8 - headBitOffset) % 8;// bit index from right
         // get the value of that bit
-        int bitValue = (header[headIdx] >> headBitOffset) & 1;
+        int bitValue;
+        synchronized (dataLock) {
+            bitValue = (data.get(headIdx) >> headBitOffset) & 1;
+        }
 //        int bitValue = (header[headIdx] & (1 << headBitOffset));
 //        System.out.println("header " + header[headIdx]);
 //        System.out.println("bit " + (i % 8));
@@ -355,17 +717,17 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         // if value=true, mark the corresponding bit as 1
-        byte headByte = header[i / 8];
+        byte headByte = data.get(i / 8);
         int bitMask = 1 << (i % 8);
         if(value){
             headByte |= bitMask;
-            header[i / 8] =  headByte;
+            data.put(i / 8, headByte);
         }
         // if value = false, mark the corresponding bit as 0
         else {
             bitMask = ~(1 << (i % 8));
             headByte &= bitMask;
-            header[i / 8] = headByte;
+            data.put(i / 8, headByte);
         }
 //        int headByte = i / 8;
 //        int headBit = i % 8;
@@ -382,6 +744,38 @@ public class HeapPage implements Page {
 //        header[headByte] = cur[cur.length - 1];
     }
 
+    /**
+     * @return the slots tid has to lock before reading this page record by
+     *   record: the used ones, and those another running transaction
+     *   changed, its changes are not committed yet
+     */
+    public int[] getSlotsToLock(TransactionId tid) {
+        int[] slots = new int[numSlots];
+        int n = 0;
+        synchronized (dataLock) {
+            for (int i = 0; i < numSlots; i++) {
+                if (isSlotUsed(i) || isChangedByOther(tid, i))
+                    slots[n++] = i;
+            }
+        }
+        return Arrays.copyOf(slots, n);
+    }
+
+    /**
+     * @param slots: slots of this page, in increasing order
+     * @return an iterator over the tuples in the used slots among them
+     */
+    public Iterator<Tuple> iterator(int[] slots) {
+        ArrayList<Tuple> tuples = new ArrayList<>();
+        synchronized (dataLock) {
+            for (int slot : slots) {
+                if (isSlotUsed(slot))
+                    tuples.add(readTuple(slot));
+            }
+        }
+        return tuples.iterator();
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
@@ -389,9 +783,11 @@ public class HeapPage implements Page {
     public Iterator<Tuple> iterator() {
         // some code goes here
         ArrayList<Tuple> validTuple = new ArrayList<>();
-        for(int i = 0; i < numSlots; i++) {
-            if(isSlotUsed(i)) {
-                validTuple.add(tuples[i]);
+        synchronized (dataLock) {
+            for(int i = 0; i < numSlots; i++) {
+                if(isSlotUsed(i)) {
+                    validTuple.add(readTuple(i));
+                }
             }
         }
         return validTuple.iterator();
@@ -82,6 +82,8 @@ public class Insert extends Operator {
           if(alreadyInserted){
               return null;
           }
+          // writers of the table only take the pages they insert into
+          Database.getBufferPool().lockTable(tid, tableId, LockMode.IX);
           while(child.hasNext()){
               Tuple cur = child.next();
               Database.getBufferPool().insertTuple(tid, tableId, cur);
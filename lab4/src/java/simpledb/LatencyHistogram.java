@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations in buckets whose bounds grow by powers of
+ * two, from 1 microsecond up to about 1 hour. Recording is a couple of atomic
+ * increments, so it can be done on hot paths without locking.
+ *
+ * @Threadsafe
+ */
+public class LatencyHistogram {
+    private static final int NUM_BUCKETS = 32;
+
+    // bucket i counts durations d (in microseconds) with 2^(i-1) <= d < 2^i
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLongArray totals = new AtomicLongArray(2); // count, sum of micros
+
+    /**
+     * Record one duration.
+     * @param nanos: the duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        totals.incrementAndGet(0);
+        totals.addAndGet(1, micros);
+    }
+
+    /** @return the number of recorded durations */
+    public long getCount() {
+        return totals.get(0);
+    }
+
+    /** @return the mean of the recorded durations, in microseconds */
+    public double getMeanMicros() {
+        long count = totals.get(0);
+        return count == 0 ? 0 : (double) totals.get(1) / count;
+    }
+
+    /**
+     * @param fraction: between 0 and 1, for example 0.99
+     * @return an upper bound of the given percentile, in microseconds
+     */
+    public long getPercentileMicros(double fraction) {
+        long count = totals.get(0);
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return 1L << i;
+        }
+        return 1L << (NUM_BUCKETS - 1);
+    }
+
+    /** Forget every recorded duration. */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            buckets.set(i, 0);
+        totals.set(0, 0);
+        totals.set(1, 0);
+    }
+
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50<=%dus p99<=%dus max<=%dus",
+                getCount(), getMeanMicros(), getPercentileMicros(0.5),
+                getPercentileMicros(0.99), getPercentileMicros(1.0));
+    }
+}
@@ -0,0 +1,89 @@
+package simpledb;
+
+/**
+ * LockId names an object that can be locked by the LockManager: a table, a
+ * page or a record. Objects form a hierarchy, a record is below its page
+ * and a page below its table.
+ */
+public class LockId {
+    private final int tableId;
+    private final PageId pid;   // null for a table
+    private final RecordId rid; // null for a table or a page
+
+    private LockId(int tableId, PageId pid, RecordId rid) {
+        this.tableId = tableId;
+        this.pid = pid;
+        this.rid = rid;
+    }
+
+    /** @return the id of a whole table */
+    public static LockId table(int tableId) {
+        return new LockId(tableId, null, null);
+    }
+
+    /** @return the id of a page */
+    public static LockId page(PageId pid) {
+        return new LockId(pid.getTableId(), pid, null);
+    }
+
+    /** @return the id of a single record */
+    public static LockId record(RecordId rid) {
+        PageId pid = rid.getPageId();
+        return new LockId(pid.getTableId(), pid, rid);
+    }
+
+    /** @return the id of the object directly above this one, null for a table */
+    public LockId getParent() {
+        if (rid != null)
+            return page(pid);
+        if (pid != null)
+            return table(tableId);
+        return null;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the page, or the page of the record, null if this is the id of a table */
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the record, null if this is the id of a table or a page */
+    public RecordId getRecordId() {
+        return rid;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof LockId))
+            return false;
+        LockId other = (LockId) o;
+        if (tableId != other.tableId)
+            return false;
+        if (pid == null ? other.pid != null : !pid.equals(other.pid))
+            return false;
+        return rid == null ? other.rid == null : rid.equals(other.rid);
+    }
+
+    @Override
+    public int hashCode() {
+        if (rid != null)
+            return rid.hashCode();
+        if (pid != null)
+            return pid.hashCode();
+        return tableId;
+    }
+
+    @Override
+    public String toString() {
+        if (rid != null)
+            return "record " + tableId + ":" + pid.getPageNumber() + ":" + rid.getTupleNumber();
+        if (pid != null)
+            return "page " + tableId + ":" + pid.getPageNumber();
+        return "table " + tableId;
+    }
+}
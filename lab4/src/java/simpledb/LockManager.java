@@ -1,32 +1,206 @@
 package simpledb;
 
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager keeps the locks of the transactions on tables, pages and
+ * records.
+ * <p>
+ * Locking is hierarchical: a lock on a page or record is taken after an
+ * intention lock (IS or IX) on the objects above it, and a S, SIX or X lock
+ * on a table or page covers everything below it without further locks.
+ * Transactions reading and writing different records of a page so only
+ * share compatible IS and IX locks on the page and its table, while a
+ * transaction can still lock a whole page or table at once. See
+ * {@link LockMode}.
+ * <p>
+ * The lock table maps every locked object to its LockState, which holds the
+ * granted locks and a FIFO queue of waiting requests. There is no global
+ * monitor: requests on different objects only meet in the concurrent maps,
+ * and a release only wakes up the requests it grants. A LockState is
+ * dropped from the table as soon as nobody holds or waits for it.
+ * <p>
+ * A transaction holding more page and record locks on a table than the
+ * escalation threshold has them replaced by a single table lock, see
+ * {@link #ESCALATION_THRESHOLD_PROPERTY}. An escalation that fails is tried
+ * again once the transaction holds twice as many locks on the table,
+ * or as soon as another lock on the table is released.
+ * <p>
+ * When a request has to wait, the DeadlockPolicy decides whether it may,
+ * see {@link #DEADLOCK_POLICY_PROPERTY}. A transaction the policy aborts
+ * while it waits has its request withdrawn; one that is running is aborted
+ * on its next lock request.
+ * <p>
+ * Contention statistics are kept while they are enabled, see
+ * {@link #STATISTICS_PROPERTY}.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
-    private Map<PageId, LockState> pageLocksMap;
-    private HashMap<TransactionId, HashSet<PageId>> transLocks; // all transaction locks, (tid, (pids)) pair
-
-    // locks dependency graph
-    private HashMap<TransactionId, HashSet<TransactionId>> locksGraph;
+    /**
+     * System property choosing the deadlock policy: "graph" (default) for
+     * detection over the waits-for graph on every blocked request,
+     * "detector" for a background detector, "wait-die" or "wound-wait".
+     */
+    public static final String DEADLOCK_POLICY_PROPERTY = "simpledb.DeadlockPolicy";
+    /** System property with the interval of the background detector, in milliseconds. */
+    public static final String DETECTION_INTERVAL_PROPERTY = "simpledb.DeadlockDetectionInterval";
+    public static final long DEFAULT_DETECTION_INTERVAL = 100;
+    /** System property with the number of page and record locks on a table above which they are escalated. */
+    public static final String ESCALATION_THRESHOLD_PROPERTY = "simpledb.LockEscalationThreshold";
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+    /** System property enabling the contention statistics, see {@link LockStatistics}. */
+    public static final String STATISTICS_PROPERTY = "simpledb.LockStatistics";
+
+    private final ConcurrentHashMap<LockId, LockState> lockTable;
+    // all transaction locks, (tid, (lock ids)) pair, including objects being waited for
+    private final ConcurrentHashMap<TransactionId, Set<LockId>> transLocks;
+    // granted page and record locks of each transaction, per table
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<Integer, Set<LockId>>> pageLocks;
+    // escalations that failed, per table: the number of locks at which
+    // each transaction tries again, dropped when a lock on the table is released
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<TransactionId, Integer>> escalationRetries;
+    // the request each blocked transaction is waiting for
+    private final ConcurrentHashMap<TransactionId, LockState.Request> waitingRequests;
+    // transactions aborted by the deadlock policy that have not completed yet
+    private final Set<TransactionId> abortedTransactions;
+    private volatile DeadlockPolicy deadlockPolicy;
+    private volatile int escalationThreshold;
+    private volatile LockStatistics statistics; // null while disabled
 
 
     public LockManager(){
-        transLocks = new HashMap<>();
-//        readLocks = new HashMap<>();
-//        writeLocks = new HashMap<>();
-        locksGraph = new HashMap<>();
-        pageLocksMap = new HashMap<>();
+        lockTable = new ConcurrentHashMap<>();
+        transLocks = new ConcurrentHashMap<>();
+        pageLocks = new ConcurrentHashMap<>();
+        escalationRetries = new ConcurrentHashMap<>();
+        waitingRequests = new ConcurrentHashMap<>();
+        abortedTransactions = ConcurrentHashMap.newKeySet();
+        deadlockPolicy = createDeadlockPolicy(System.getProperty(DEADLOCK_POLICY_PROPERTY, "graph"));
+        escalationThreshold = Integer.getInteger(ESCALATION_THRESHOLD_PROPERTY, DEFAULT_ESCALATION_THRESHOLD);
+        if(Boolean.getBoolean(STATISTICS_PROPERTY))
+            statistics = new LockStatistics();
+    }
+
+    /**
+     * Turn the contention statistics on or off. Turning them on starts
+     * from zero, turning them off drops them.
+     */
+    public void setStatisticsEnabled(boolean enabled) {
+        if(!enabled)
+            statistics = null;
+        else if(statistics == null)
+            statistics = new LockStatistics();
+    }
+
+    public boolean isStatisticsEnabled() {
+        return statistics != null;
+    }
+
+    /**
+     * @return the contention statistics, null if they are disabled
+     */
+    public LockStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Set the contention statistics back to zero, if they are enabled.
+     */
+    public void resetStatistics() {
+        if(statistics != null)
+            statistics = new LockStatistics();
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
     }
 
     /**
-     * Return true if such tid has a readLock or writeLock on a certain page.
+     * @param threshold: number of page and record locks a transaction may
+     *   hold on one table before they are replaced by a table lock
+     */
+    public void setEscalationThreshold(int threshold) {
+        if(threshold <= 0)
+            throw new IllegalArgumentException("escalation threshold must be positive");
+        this.escalationThreshold = threshold;
+    }
+
+    /**
+     * @param name: "graph", "detector", "wait-die" or "wound-wait"
+     * @return the deadlock policy of that name, for this lock manager
+     */
+    public DeadlockPolicy createDeadlockPolicy(String name){
+        switch (name.toLowerCase()) {
+            case "graph":
+                return new WaitsForGraphPolicy();
+            case "detector":
+                long interval = Long.getLong(DETECTION_INTERVAL_PROPERTY, DEFAULT_DETECTION_INTERVAL);
+                return new DeadlockDetector(this, interval, WaitsForGraphPolicy.Victim.YOUNGEST);
+            case "wait-die":
+                return new WaitDiePolicy();
+            case "wound-wait":
+                return new WoundWaitPolicy();
+            default:
+                throw new IllegalArgumentException("unknown deadlock policy " + name);
+        }
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return deadlockPolicy;
+    }
+
+    public void setDeadlockPolicy(DeadlockPolicy deadlockPolicy) {
+        DeadlockPolicy old = this.deadlockPolicy;
+        this.deadlockPolicy = deadlockPolicy;
+        if(old != deadlockPolicy)
+            old.shutdown();
+    }
+
+    /**
+     * Return true if such tid has a readLock or writeLock on a certain page,
+     * either on the page itself or through a lock on its table.
      * @param tid: transaction id
      * @param pid: page id of the request page
      * @return true: if this tid has read/write lock on page.
      */
 
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid){
-        return transLocks.containsKey(tid) && transLocks.get(tid).contains(pid);
+    public boolean holdsLock(TransactionId tid, PageId pid){
+        LockId id = LockId.page(pid);
+        return getMode(tid, id) != null || isCovered(tid, id.getParent(), LockMode.S);
+    }
+
+    /**
+     * @param tid: transaction id
+     * @param id: a table, page or record
+     * @return the mode tid holds on id itself, null if it holds no lock on it
+     */
+    public LockMode getMode(TransactionId tid, LockId id){
+        LockState lock = lockTable.get(id);
+        return lock == null ? null : lock.getMode(tid);
+    }
+
+    /**
+     * @param id: a table, page or record
+     * @return true if a transaction holds IX, SIX or X on id
+     */
+    public boolean isWriteLocked(LockId id){
+        LockState lock = lockTable.get(id);
+        return lock != null && lock.hasWriters();
+    }
+
+    /**
+     * @return true if a lock of tid on id or one of the objects above it
+     *   gives mode on everything below
+     */
+    private boolean isCovered(TransactionId tid, LockId id, LockMode mode){
+        for(LockId cur = id; cur != null; cur = cur.getParent()){
+            LockMode held = getMode(tid, cur);
+            if(held != null && held.coversChildren(mode))
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -37,31 +211,7 @@ public class LockManager {
      */
     public void acquireReadLock(TransactionId tid, PageId pid)
         throws TransactionAbortedException {
-        LockState locksOnPage = getOrCreateLockState(pid);
-        synchronized (this){
-            if(locksOnPage.isHoldBy(tid))
-                return;
-
-            // if this page has write locks
-            // add them as the nodes connected to current tid
-            if(locksOnPage.hasLocks() && locksOnPage.isExclusive()){
-                locksGraph.put(tid, locksOnPage.allLocksOnPage());
-
-                // if the current tid will cause deadlock
-                // remove this tid
-                if(hasDeadLock(tid)){
-                    locksGraph.remove(tid);
-                    throw new TransactionAbortedException();
-                }
-            }
-
-        }
-        locksOnPage.addReadLock(tid); // add read lock to this page
-        synchronized (this){
-            locksGraph.remove(tid); // remove this tid in the locks graph
-            addLockedPages(tid, pid); // mark this page as locked by this tid
-        }
-
+        acquireLock(tid, LockId.page(pid), LockMode.S);
     }
 
     /**
@@ -72,302 +222,318 @@ public class LockManager {
      */
     public void acquireWriteLock(TransactionId tid, PageId pid)
         throws TransactionAbortedException {
-        LockState locksOnPage = getOrCreateLockState(pid);
-        synchronized (this){
-            // if this tid is already a write lock on this page, do nothing
-            if(locksOnPage.isExclusive() && locksOnPage.isHoldBy(tid))
+        acquireLock(tid, LockId.page(pid), LockMode.X);
+    }
+
+    /**
+     * acquire a lock on a table, page or record, after the intention locks
+     * on the objects above it. Nothing is locked if a lock held on an object
+     * above already covers the request.
+     * @param tid: lock id need to be grant
+     * @param id: the object to lock
+     * @param mode: the requested mode
+     * @throws TransactionAbortedException if the deadlock policy aborts the
+     *   transaction, or a request was cancelled because it completed
+     */
+    public void acquireLock(TransactionId tid, LockId id, LockMode mode)
+        throws TransactionAbortedException {
+        LockId parent = id.getParent();
+        if(parent != null){
+            if(isCovered(tid, parent, mode))
+                return;
+            acquireLock(tid, parent, mode.getIntention());
+            escalate(tid, id.getTableId(), mode);
+            // the table lock may cover the request after an escalation
+            if(isCovered(tid, parent, mode))
                 return;
-            // if this page already held by locks, check for deadlock
-            if(locksOnPage.hasLocks()){
-                locksGraph.put(tid, locksOnPage.allLocksOnPage());
-                if(hasDeadLock(tid)){
-                    locksGraph.remove(tid);
-                    throw new TransactionAbortedException();
-                }
-            }
         }
-        // add write lock to this page
-        locksOnPage.addWriteLock(tid);
+        lockObject(tid, id, mode);
+    }
 
-        synchronized (this){
-            locksGraph.remove(tid);
-            addLockedPages(tid, pid);
+    /**
+     * acquire a lock like acquireLock, but never wait: the request fails if
+     * any lock on the way down cannot be granted right away. The locks
+     * granted before a failure are kept until tid releases them.
+     * @param tid: the transaction asking for the lock
+     * @param id: the object to lock
+     * @param mode: the requested mode
+     * @return true if tid holds or is covered for the requested lock
+     */
+    public boolean tryAcquireLock(TransactionId tid, LockId id, LockMode mode){
+        if(abortedTransactions.contains(tid))
+            return false;
+        LockId parent = id.getParent();
+        if(parent != null){
+            if(isCovered(tid, parent, mode))
+                return true;
+            if(!tryAcquireLock(tid, parent, mode.getIntention()))
+                return false;
         }
+        boolean[] granted = new boolean[1];
+        lockTable.compute(id, (k, cur) -> {
+            LockState l = cur == null ? new LockState(k) : cur;
+            granted[0] = l.tryAcquire(tid, mode);
+            return l;
+        });
+        if(granted[0])
+            addLock(tid, id);
+        else
+            reclaim(id);
+        return granted[0];
     }
 
-
     /**
-     * helper dfs to detect cycles in the lock graph
-     * @param tid: start graph node
-     * @param visited: visited nodes record
-     * @return true if detect cycle
+     * Replace the page and record locks tid holds on a table by a table
+     * lock, if it holds more of them than the threshold. The table lock is
+     * X if tid writes the table, S otherwise. Nothing happens if the table
+     * lock cannot be granted right away, tid then keeps locking pages and
+     * records and backs off before it tries again.
+     * @param tid: the transaction asking for a page or record lock
+     * @param tableId: the table of the page or record
+     * @param mode: the mode asked for the page or record
      */
-    private boolean dfs(TransactionId tid, HashSet<TransactionId> visited){
-        if(locksGraph.containsKey(tid)){
-            visited.add(tid);
-            for(TransactionId w : locksGraph.get(tid)){
-                // not count self-loops
-                if(!w.equals(tid)){
-                    if(!visited.contains(w)){
-                        if(dfs(w, visited))
-                            return true;
-                    }
-                    // if this node is visited, cycle exists
-                    else
-                        return true;
-                }
+    private void escalate(TransactionId tid, int tableId, LockMode mode){
+        ConcurrentHashMap<Integer, Set<LockId>> tables = pageLocks.get(tid);
+        Set<LockId> children = tables == null ? null : tables.get(tableId);
+        int count = children == null ? 0 : children.size();
+        if(count < escalationThreshold)
+            return;
+        ConcurrentHashMap<TransactionId, Integer> retries = escalationRetries.get(tableId);
+        Integer retry = retries == null ? null : retries.get(tid);
+        if(retry != null && count < retry)
+            return;
+
+        LockId table = LockId.table(tableId);
+        // tid holds IX or more on the table if it writes one of its pages or records
+        LockMode held = getMode(tid, table);
+        boolean writes = mode != LockMode.IS && mode != LockMode.S
+                || held != null && held != LockMode.IS && held != LockMode.S;
+        LockMode tableMode = writes ? LockMode.X : LockMode.S;
+        boolean[] granted = new boolean[1];
+        lockTable.compute(table, (k, lock) -> {
+            if(lock == null)
+                lock = new LockState(k);
+            granted[0] = lock.tryAcquire(tid, tableMode);
+            return lock;
+        });
+        if(!granted[0]){
+            escalationRetries.computeIfAbsent(tableId, t -> new ConcurrentHashMap<>()).put(tid, count * 2);
+            return;
+        }
+        Debug.log("transaction %d escalated %d locks to a %s lock on table %d",
+                tid.getId(), count, tableMode, tableId);
+        tables.remove(tableId);
+        if(retries != null)
+            retries.remove(tid);
+        Set<LockId> locks = transLocks.get(tid);
+        for(LockId id : children){
+            locks.remove(id);
+            LockState lock = lockTable.get(id);
+            if(lock != null){
+                lock.unlockAll(tid);
+                reclaim(id);
             }
         }
-        return false;
     }
 
     /**
-     * return true if exists cycle starting with the current tid
-     * @param tid
-     * @return true if detected a cycle
+     * acquire a lock on a single object, waiting in its queue if it cannot
+     * be granted right away
+     * @param tid: lock id need to be grant
+     * @param id: the object to lock
+     * @param mode: the requested mode
+     * @throws TransactionAbortedException if the deadlock policy aborts the
+     *   transaction, or the request was cancelled because it completed
      */
-    private boolean hasDeadLock(TransactionId tid){
-        HashSet<TransactionId> visited = new HashSet<>();
-        Queue<TransactionId> q = new LinkedList<>();
-
-        // dfs to find circle
-        return dfs(tid, visited);
-
-        // bfs to find circle
-//        visited.add(tid);
-//        q.offer(tid);
-//
-//        while(!q.isEmpty()){
-//            TransactionId cur = q.poll();
-//            if(LockGraph.containsKey(cur)){
-//                for(TransactionId w : LockGraph.get(cur)){
-//                    if(w.equals(cur))
-//                        continue;
-//                    if(!visited.contains(w)){
-//                        visited.add(w);
-//                        q.offer(w);
-//                    }
-//                    else{
-//                        System.out.println("detect dead lock");
-//                        return true;
-//                    }
-//                }
-//            }
-//
-//        }
+    private void lockObject(TransactionId tid, LockId id, LockMode mode)
+        throws TransactionAbortedException {
+        if(abortedTransactions.contains(tid))
+            throw new TransactionAbortedException();
+        // recorded before waiting, so releaseAllLocks also cancels the request,
+        // but only counted for escalation once it is granted
+        recordLock(tid, id);
+        // queued in compute, so the lock cannot be reclaimed in between
+        LockState.Request[] queued = new LockState.Request[1];
+        LockState lock = lockTable.compute(id, (k, cur) -> {
+            LockState l = cur == null ? new LockState(k) : cur;
+            queued[0] = l.acquire(tid, mode);
+            return l;
+        });
+        LockState.Request request = queued[0];
+        if(request == null){
+            countLock(tid, id);
+            return;
+        }
+
+        waitingRequests.put(tid, request);
+        DeadlockPolicy policy = deadlockPolicy;
+        LockStatistics stats = statistics;
+        long start = stats == null ? 0 : System.nanoTime();
+        if(stats != null && request.isUpgrade())
+            stats.recordUpgradeConflict();
+        try {
+            // checked after publishing the request, see abortTransaction
+            if(abortedTransactions.contains(tid))
+                throw new TransactionAbortedException();
+            try {
+                policy.beforeWait(this, tid, lock.blockersOf(request));
+            } catch (TransactionAbortedException e) {
+                if(stats != null)
+                    stats.recordDeadlockAbort();
+                throw e;
+            }
+            request.await();
+            countLock(tid, id);
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        } finally {
+            if(stats != null)
+                stats.recordWait(id, System.nanoTime() - start);
+            waitingRequests.remove(tid, request);
+            // no-op if the request was granted
+            if(lock.cancel(request))
+                reclaim(id);
+            policy.afterWait(this, tid);
+        }
     }
 
     /**
-     * get LockState for a given page
-     * if this pid has not been added, create and return a new lock-state
-     * else return the lock-state
-     * @param pid: page id
-     * @return
+     * @param tid: a transaction
+     * @return the transactions tid waits for, empty if it is not waiting
      */
-    private LockState getOrCreateLockState(PageId pid){
-        if(!pageLocksMap.containsKey(pid)){
-            pageLocksMap.put(pid, new LockState());
-        }
-        return pageLocksMap.get(pid);
+    public Set<TransactionId> getBlockers(TransactionId tid){
+        LockState.Request request = waitingRequests.get(tid);
+        if(request == null)
+            return Collections.emptySet();
+        return request.lock.blockersOf(request);
     }
 
     /**
-     * add page id which is locked by the tid
-     * @param tid: transaction id in pageLockMap
-     * @param pid: page id that is locked by tid
+     * @return the number of transactions waiting for a lock
      */
-    private void addLockedPages(TransactionId tid, PageId pid){
-        if(!transLocks.containsKey(tid)){
-            transLocks.put(tid, new HashSet<>());
-        }
-        transLocks.get(tid).add(pid);
+    public int getNumWaiting(){
+        return waitingRequests.size();
     }
 
     /**
-     * get page ids that are locked by the specified tid
-     * @param tid
-     * @return
+     * @param tid: a transaction
+     * @return the number of objects tid holds or waits for, a measure of its work
      */
-    public HashSet<PageId> getLockedPages(TransactionId tid){
-        if(transLocks.containsKey(tid))
-            return transLocks.get(tid);
-        return null;
+    public int getNumLocks(TransactionId tid){
+        Set<LockId> locks = transLocks.get(tid);
+        return locks == null ? 0 : locks.size();
     }
 
     /**
-     * release lock on a given page with given tid
-     * and remove from transLock map
-     * @param tid
-     * @param pid
+     * Abort a transaction on behalf of the deadlock policy: its waiting
+     * request is withdrawn, and its later requests fail until it completes.
+     * @param tid: the transaction to abort
      */
-    public synchronized void releaseLock(TransactionId tid, PageId pid){
-        if(pageLocksMap.containsKey(pid)){
-            pageLocksMap.get(pid).unlockAll(tid);
-            transLocks.get(tid).remove(pid);
-        }
+    public void abortTransaction(TransactionId tid){
+        LockStatistics stats = statistics;
+        if(abortedTransactions.add(tid) && stats != null)
+            stats.recordDeadlockAbort();
+        LockState.Request request = waitingRequests.get(tid);
+        if(request != null)
+            request.lock.cancel(request);
     }
 
     /**
-     * unlock tid on a given page
-     * @param tid
-     * @param pid
+     * drop the LockState of an object from the lock table if nobody holds
+     * or waits for it anymore
+     * @param id: table, page or record
      */
-    private synchronized void removeLock(TransactionId tid, PageId pid){
-        if(pageLocksMap.containsKey(pid)){
-            pageLocksMap.get(pid).unlockAll(tid);
-        }
+    private void reclaim(LockId id){
+        lockTable.computeIfPresent(id, (k, lock) -> lock.isFree() ? null : lock);
     }
+
     /**
-     * release all locks with a given tid
-     * remove related read/write locks, and then remove from transLock map
-     * @param tid
+     * @return the number of objects in the lock table
      */
-    public synchronized void releaseAllLocks(TransactionId tid){
-        if(transLocks.containsKey(tid) && !transLocks.get(tid).isEmpty()){
-            for(PageId pid : transLocks.get(tid)){
-                removeLock(tid, pid);
-            }
-            // remove from transLock map
-            transLocks.remove(tid);
-        }
+    public int getLockTableSize(){
+        return lockTable.size();
     }
 
+    /**
+     * add an object which is locked by the tid
+     * @param tid: transaction id in transLocks
+     * @param id: object that is locked by tid
+     */
+    private void addLock(TransactionId tid, LockId id){
+        recordLock(tid, id);
+        countLock(tid, id);
+    }
 
+    /**
+     * add an object which tid holds or waits for to transLocks
+     * @param tid: transaction id in transLocks
+     * @param id: object that tid locks or waits for
+     */
+    private void recordLock(TransactionId tid, LockId id){
+        transLocks.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(id);
+    }
 
-
-    //    private HashMap<PageId, HashSet<TransactionId>> readLocks; // shared locks
-//    private HashMap<PageId, TransactionId> writeLocks; // exclusive locks
-
-//    private void addLock(TransactionId tid, PageId pid, Permissions perm){
-//        if(perm == Permissions.READ_ONLY){
-//            if(!readLocks.containsKey(pid)){
-//                readLocks.put(pid, new HashSet<>());
-//            }
-//            readLocks.get(pid).add(tid);
-//        }
-//        else {
-//            writeLocks.put(pid, tid);
-//        }
-//        if(!transLocks.containsKey(tid)){
-//            transLocks.put(tid, new HashSet<>());
-//        }
-//        transLocks.get(tid).add(pid);
-//    }
-
-
-//    public synchronized boolean acquireLock(TransactionId tid, PageId pid, Permissions perm){
-//        if(holdsLock(tid, pid, perm)){
-//            return true;
-//        }
-//
-//        // wait for the lock to become available
-//        long start = System.currentTimeMillis();
-//        long timeout = (long)(Math.random() * 3000) + 5000;
-//        while(!canAcquireLock(tid, pid, perm)){
-//            // catch interruption 5 times every second
-//            try{
-//                wait(100);
-//            }
-//            catch (InterruptedException e){
-//                e.printStackTrace();
-//                return false;
-//            }
-//            // if times out, return false, not able to acquire that lock
-//            long elapse = System.currentTimeMillis() - start;
-//
-//            if(elapse > timeout){
-//                return false;
-//            }
-//
-//        }
-//        // add lock
-//        addLock(tid, pid, perm);
-//
-//
-//        return true;
-//    }
-//
-//
-//
-//    public synchronized boolean canAcquireLock(TransactionId tid, PageId pid, Permissions perm){
-//        if(holdsLock(tid, pid, perm)){
-//            return true;
-//        }
-//        // flag: whether this page has read/write locks
-//        boolean hasReadLock = readLocks.containsKey(pid);
-//        boolean hasWriteLock = writeLocks.containsKey(pid);
-//        // if a page has no lock, return true
-//        if((!hasReadLock && !hasWriteLock))
-//            return true;
-//
-//        // if no write-lock on this page
-//        // if the current request is read, return true;
-//        // if the current request is read-write, check if it can be granted
-//        if(!hasWriteLock){
-//            if(perm == Permissions.READ_ONLY){ return true; }
-//            else if(canUpgradeTid(tid, pid)){
-//                return true;
-//            }
-//        }
-//        // false for all the other cases
-//        return false;
-//    }
-//
-//
-//    /*
-//        check whether a tid on a given page can be upgraded
-//        if such tid exists, and it is the only read lock on this page, it can be upgraded to a write lock
-//     */
-//    private synchronized boolean canUpgradeTid(TransactionId tid, PageId pid){
-//        return transLocks.containsKey(tid) && transLocks.get(tid).contains(pid)
-//                && readLocks.containsKey(pid) && readLocks.get(pid).contains(tid) && (readLocks.get(pid).size() == 1)
-//                && (!writeLocks.containsKey(pid));
-//    }
+    /**
+     * count a granted page or record lock towards the escalation threshold
+     * of its table
+     * @param tid: transaction id in pageLocks
+     * @param id: object that is locked by tid
+     */
+    private void countLock(TransactionId tid, LockId id){
+        if(id.getPageId() != null)
+            pageLocks.computeIfAbsent(tid, t -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(id.getTableId(), t -> ConcurrentHashMap.newKeySet()).add(id);
+    }
 
     /**
-     * remove given tid in given pages (write lock and read lock)
-     * remove from page
+     * get the objects that are locked by the specified tid
      * @param tid
-     * @param pid
+     * @return the locked objects, null if tid holds no lock
      */
-//    public synchronized void removeLock(TransactionId tid, PageId pid){
-//        // remove read lock
-//        if(readLocks.containsKey(pid)){
-//            readLocks.get(pid).remove(tid);
-//            if(readLocks.get(pid).isEmpty()){
-//                readLocks.remove(pid);
-//            }
-//        }
-//        // remove write lock
-//        // only one tid can write at a time
-//        if(writeLocks.containsKey(pid) && writeLocks.get(pid).equals(tid)){
-//            writeLocks.remove(pid);
-//        }
-//    }
+    public Set<LockId> getLocks(TransactionId tid){
+        return transLocks.get(tid);
+    }
 
     /**
-     * Return true if such tid has a readLock or writeLock on a certain page for the assigend
-     * permission type.
+     * release lock on a given page with given tid
+     * and remove from transLock map
      * @param tid
      * @param pid
-     * @param perm
-     * @return
      */
+    public void releaseLock(TransactionId tid, PageId pid){
+        LockId id = LockId.page(pid);
+        LockState lock = lockTable.get(id);
+        if(lock != null){
+            lock.unlockAll(tid);
+            reclaim(id);
+        }
+        Set<LockId> locks = transLocks.get(tid);
+        ConcurrentHashMap<Integer, Set<LockId>> tables = pageLocks.get(tid);
+        if(locks != null && locks.remove(id) && tables != null)
+            tables.computeIfPresent(id.getTableId(), (t, pages) -> pages.remove(id) && pages.isEmpty() ? null : pages);
+    }
 
-//    public synchronized boolean holdsLock(TransactionId tid, PageId pid, Permissions perm){
-//        if(perm == Permissions.READ_ONLY){
-//            // if it's read-only
-//            // return true if it has corresponding read lock
-//            // or this tid is a write lock on this page
-//            return (readLocks.containsKey(pid) && readLocks.get(pid).contains(tid))
-//                    || (writeLocks.containsKey(pid) && writeLocks.get(pid).equals(tid));
-//        } else {
-//            // if it's read-write
-//            // return true only if this tid is a write lock on this page
-//            return writeLocks.containsKey(pid) && writeLocks.get(pid).equals(tid);
-//        }
-//    }
-
-
+    /**
+     * release all locks with a given tid
+     * remove related read/write locks and pending requests, and then remove
+     * from transLock map
+     * @param tid
+     */
+    public void releaseAllLocks(TransactionId tid){
+        abortedTransactions.remove(tid);
+        pageLocks.remove(tid);
+        Set<LockId> locks = transLocks.remove(tid);
+        if(locks == null)
+            return;
+        for(LockId id : locks){
+            LockState lock = lockTable.get(id);
+            if(lock != null){
+                lock.unlockAll(tid);
+                reclaim(id);
+            }
+            // the lock that made an escalation fail may be gone
+            if(id.getPageId() == null)
+                escalationRetries.remove(id.getTableId());
+        }
+    }
 }
-
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * LockManagerMonitor exposes the contention statistics of the lock manager
+ * over JMX and formats them for the SHOW LOCKS console command. The
+ * counters read 0 while statistics are disabled.
+ * <p>
+ * It always reports on the lock manager of the current buffer pool, so it
+ * only needs to be registered once even if the pool is replaced.
+ */
+public class LockManagerMonitor implements LockManagerMonitorMBean {
+    private static final String OBJECT_NAME = "simpledb:type=LockManager";
+    /** Number of tables and pages listed as hot. */
+    private static final int HOT_ENTRIES = 10;
+    private static boolean registered = false;
+
+    /**
+     * Register the monitor with the platform MBean server, if it is not
+     * registered yet.
+     */
+    public static synchronized void register() {
+        if (registered)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(new LockManagerMonitor(), name);
+            registered = true;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private LockManager lockManager() {
+        return Database.getBufferPool().getLockManager();
+    }
+
+    public boolean isStatisticsEnabled() {
+        return lockManager().isStatisticsEnabled();
+    }
+
+    public void setStatisticsEnabled(boolean enabled) {
+        lockManager().setStatisticsEnabled(enabled);
+    }
+
+    public int getLockTableSize() {
+        return lockManager().getLockTableSize();
+    }
+
+    public long getWaits() {
+        LockStatistics stats = lockManager().getStatistics();
+        return stats == null ? 0 : stats.getWaits();
+    }
+
+    public long getWaitTimeMillis() {
+        LockStatistics stats = lockManager().getStatistics();
+        return stats == null ? 0 : stats.getWaitMillis();
+    }
+
+    public long getDeadlockAborts() {
+        LockStatistics stats = lockManager().getStatistics();
+        return stats == null ? 0 : stats.getDeadlockAborts();
+    }
+
+    public long getUpgradeConflicts() {
+        LockStatistics stats = lockManager().getStatistics();
+        return stats == null ? 0 : stats.getUpgradeConflicts();
+    }
+
+    public String[] getHotTables() {
+        LockStatistics stats = lockManager().getStatistics();
+        if (stats == null)
+            return new String[0];
+        ArrayList<String> entries = new ArrayList<>();
+        for (LockStatistics.Contention c : stats.getHottestTables(HOT_ENTRIES)) {
+            entries.add(format(tableName(c.getLockId().getTableId()), c));
+        }
+        return entries.toArray(new String[0]);
+    }
+
+    public String[] getHotPages() {
+        LockStatistics stats = lockManager().getStatistics();
+        if (stats == null)
+            return new String[0];
+        ArrayList<String> entries = new ArrayList<>();
+        for (LockStatistics.Contention c : stats.getHottestPages(HOT_ENTRIES)) {
+            PageId pid = c.getLockId().getPageId();
+            entries.add(format(tableName(pid.getTableId()) + "#" + pid.getPageNumber(), c));
+        }
+        return entries.toArray(new String[0]);
+    }
+
+    public void resetStatistics() {
+        lockManager().resetStatistics();
+    }
+
+    private static String format(String name, LockStatistics.Contention c) {
+        return name + ": " + c.getWaits() + " waits, " + c.getWaitMillis() + " ms";
+    }
+
+    private static String tableName(int tableId) {
+        try {
+            return Database.getCatalog().getTableName(tableId);
+        } catch (NoSuchElementException e) {
+            return String.valueOf(tableId);
+        }
+    }
+
+    /**
+     * @return a human readable report of the lock contention
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("lock table: %d objects%n", getLockTableSize()));
+        if (!isStatisticsEnabled()) {
+            sb.append(String.format("statistics are disabled, set %s=true to enable them%n",
+                    LockManager.STATISTICS_PROPERTY));
+            return sb.toString();
+        }
+        sb.append(String.format("waits:      %d, %d ms in total%n", getWaits(), getWaitTimeMillis()));
+        sb.append(String.format("deadlocks:  %d aborts%n", getDeadlockAborts()));
+        sb.append(String.format("upgrades:   %d waited%n", getUpgradeConflicts()));
+        sb.append(String.format("hot tables:%n"));
+        for (String entry : getHotTables()) {
+            sb.append("  ").append(entry).append(String.format("%n"));
+        }
+        sb.append(String.format("hot pages:%n"));
+        for (String entry : getHotPages()) {
+            sb.append("  ").append(entry).append(String.format("%n"));
+        }
+        return sb.toString();
+    }
+}
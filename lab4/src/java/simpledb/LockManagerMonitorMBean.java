@@ -0,0 +1,39 @@
+package simpledb;
+
+/**
+ * Management interface of the lock manager, published over JMX as
+ * simpledb:type=LockManager.
+ *
+ * @see LockManagerMonitor
+ */
+public interface LockManagerMonitorMBean {
+    /** @return true if contention statistics are kept */
+    public boolean isStatisticsEnabled();
+
+    /** Turn the contention statistics on or off. */
+    public void setStatisticsEnabled(boolean enabled);
+
+    /** @return the number of objects in the lock table */
+    public int getLockTableSize();
+
+    /** @return the number of lock requests that waited */
+    public long getWaits();
+
+    /** @return the total time lock requests waited, in milliseconds */
+    public long getWaitTimeMillis();
+
+    /** @return the number of transactions aborted by the deadlock policy */
+    public long getDeadlockAborts();
+
+    /** @return the number of lock upgrades that waited */
+    public long getUpgradeConflicts();
+
+    /** @return "table: waits, ms" entries for the tables waited on most */
+    public String[] getHotTables();
+
+    /** @return "page: waits, ms" entries for the pages waited on most */
+    public String[] getHotPages();
+
+    /** Set the contention statistics back to zero. */
+    public void resetStatistics();
+}
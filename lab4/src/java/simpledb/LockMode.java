@@ -0,0 +1,82 @@
+package simpledb;
+
+/**
+ * The lock modes of multi-granularity locking. A transaction takes a lock
+ * on a table, a page or a record after taking the matching intention lock
+ * on every coarser object above it: IS above a shared lock, IX above an
+ * exclusive one.
+ * <ul>
+ * <li>IS: intention to take shared locks below</li>
+ * <li>IX: intention to take exclusive locks below</li>
+ * <li>S: shared lock on the object and everything below</li>
+ * <li>SIX: S, plus the intention to take exclusive locks below</li>
+ * <li>X: exclusive lock on the object and everything below</li>
+ * </ul>
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // COMPATIBLE[a][b] is true if a and b can be held by two transactions at once
+    private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+    };
+
+    /**
+     * @return true if this mode and other can be held on the same object by
+     *   different transactions
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return the weakest mode that is at least as strong as this and other,
+     *   the mode a transaction holds after asking for other while holding this
+     */
+    public LockMode combine(LockMode other) {
+        if (this == other || other == IS)
+            return this;
+        if (this == IS)
+            return other;
+        if (this == X || other == X)
+            return X;
+        // two different modes of IX, S and SIX
+        return SIX;
+    }
+
+    /**
+     * @return true if holding this mode gives everything other gives
+     */
+    public boolean covers(LockMode other) {
+        return combine(other) == this;
+    }
+
+    /**
+     * @return true if holding this mode on an object implicitly gives a lock
+     *   of mode child on everything below it
+     */
+    public boolean coversChildren(LockMode child) {
+        switch (this) {
+            case X:
+                return true;
+            case S:
+            case SIX:
+                return child == IS || child == S;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the intention mode to hold on the coarser objects above an
+     *   object locked in this mode
+     */
+    public LockMode getIntention() {
+        return (this == IS || this == S) ? IS : IX;
+    }
+}
@@ -3,181 +3,294 @@ package simpledb;
 import java.util.*;
 
 /**
- * a class that manage all the locks on a page
+ * a class that manage all the locks on a table, page or record: the
+ * transactions holding a lock on it and their modes, and a FIFO queue of
+ * the requests waiting for one.
+ * <p>
+ * Requests are granted in arrival order and a new request never overtakes a
+ * waiting one, so a writer is not starved by a stream of readers. Upgrades
+ * of a shared lock are the exception, they go ahead of the other waiters
+ * since the upgrading transaction already holds the object.
+ * <p>
+ * Every waiting request has its own monitor, so a release only wakes up the
+ * threads whose requests it grants instead of every thread waiting on the object.
+ *
+ * @Threadsafe
  */
 public class LockState {
-    private HashSet<TransactionId> holdLocks; // all locks held by the page
-    private int readCount; // number of read locks
-    private int writeCount; // number of write locks
-
-    private boolean isExclusive; // if has write lock, is exclusive
-
-
-    // locks that requests lock on this page
-    // true: write lock request; false read lock request:
-    private HashMap<TransactionId, Boolean> acquireLocks;
-    public LockState(){
-        holdLocks = new HashSet<>();
-        acquireLocks = new HashMap<>();
-        isExclusive = false;
-        readCount = 0;
-        writeCount = 0;
-    }
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
 
     /**
-     * add a read lock to this page specified tid
-     * @param tid: tid of the read lock
+     * a lock request that could not be granted right away
      */
+    static class Request {
+        final LockState lock;
+        final TransactionId tid;
+        final LockMode mode; // the mode held once granted
+        private final boolean upgrade;
+        private int status; // guarded by this request
 
-    public void addReadLock(TransactionId tid){
-        // if this page already has this tid and only has read locks
-        if(holdLocks.contains(tid) && !isExclusive)
-            return;
+        // called under the monitor of lock
+        private Request(LockState lock, TransactionId tid, LockMode mode) {
+            this.lock = lock;
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = lock.holders.containsKey(tid);
+            this.status = WAITING;
+        }
+
+        /**
+         * @return true if the request is the upgrade of a held lock
+         */
+        boolean isUpgrade() {
+            return upgrade;
+        }
 
-        acquireLocks.put(tid, false);// one read lock is acquiring
-        synchronized (this){
-            try{
-                // if this page has write locks, wait to have no write locks
-                while(writeCount > 0)
+        /**
+         * wait until the request is granted
+         * @throws TransactionAbortedException if the request was cancelled
+         */
+        void await() throws InterruptedException, TransactionAbortedException {
+            synchronized (this) {
+                while (status == WAITING)
                     wait();
-                addLock(tid, false);
-            } catch (InterruptedException e){
-                e.printStackTrace();
+                if (status == CANCELLED)
+                    throw new TransactionAbortedException();
             }
         }
-        acquireLocks.remove(tid);
-    }
-
-    /**
-     * add write lock to this page with specified tid
-     * @param tid: tid of the write lock
-     */
-    public void addWriteLock(TransactionId tid){
-        // already exists, return
-        if(holdLocks.contains(tid) && isExclusive)
-            return;
-        // if current tid has already been acquired as a write lock
-        if (acquireLocks.containsKey(tid) && acquireLocks.get(tid))
-            return;
-
-        acquireLocks.put(tid, true); // one write lock is acquiring
-        synchronized (this){
-            try{
-                // if current tid exists as a read lock
-                // wait until only this read lock exist
-                // then it can upgrade to write-lock
-                if(holdLocks.contains(tid)){
-                    while(holdLocks.size() > 1)
-                        wait();
-                    // unlock this read lock to do upgrade
-                    unlockRead(tid, false);
-                }
-                while(readCount > 0 || writeCount > 0)
-                    wait();
 
-                addLock(tid, true);
-            }catch (InterruptedException e){
-                e.printStackTrace();
-            }
+        /**
+         * set the final status of the request and wake up its thread
+         */
+        private synchronized void complete(int newStatus) {
+            status = newStatus;
+            notify();
         }
-        acquireLocks.remove(tid);
+    }
+
+    private final LockId id;
+    private final HashMap<TransactionId, LockMode> holders;
+    private final LinkedList<Request> waiters; // FIFO, upgrades first
+
+    public LockState(LockId id){
+        this.id = id;
+        holders = new HashMap<>();
+        waiters = new LinkedList<>();
     }
 
     /**
-     * helper method to do the add read/write lock
-     * @param tid: tid of the lock
-     * @param isWrite: is write lock or not
+     * @return the object this lock is on
      */
-    private void addLock(TransactionId tid, boolean isWrite){
-        holdLocks.add(tid);
-        isExclusive = isWrite;
-        if(isWrite) writeCount++;
-        else readCount++;
+    public LockId getLockId() {
+        return id;
     }
 
     /**
-     * unlock a read lock, and whether to notify all
-     * @param tid: the lock to be unlocked
-     * @param toNotifyAll: whether to notifyall or not
+     * Ask for a lock on this object. The lock is granted right away if it is
+     * compatible with the held locks and nobody is waiting, otherwise the
+     * request is queued and the caller has to wait for it. A transaction
+     * that already holds a lock ends up with the combination of both modes.
+     *
+     * @param tid: transaction asking for the lock
+     * @param mode: the requested mode
+     * @return null if the lock is granted, or the queued request
      */
-    public void unlockRead(TransactionId tid, boolean toNotifyAll){
-        if(holdLocks.contains(tid)){
-            synchronized (this){
-                readCount--;
-                holdLocks.remove(tid);
-                if(toNotifyAll){
-                    notifyAll();
+    public synchronized Request acquire(TransactionId tid, LockMode mode) {
+        LockMode held = holders.get(tid);
+        // already holds a lock that is strong enough
+        if (held != null && held.covers(mode))
+            return null;
+        Request request = new Request(this, tid, held == null ? mode : held.combine(mode));
+        if (grantNow(request))
+            return null;
+        if (request.isUpgrade()) {
+            // behind the upgrades that are already waiting, ahead of the others
+            ListIterator<Request> it = waiters.listIterator();
+            while (it.hasNext()) {
+                if (!it.next().isUpgrade()) {
+                    it.previous();
+                    break;
                 }
             }
+            it.add(request);
+        } else {
+            waiters.addLast(request);
         }
+        return request;
     }
 
     /**
-     * unlock a write lock, and whether to notify all
-     * @param tid: the lock to be unlocked
-     * @param toNotifyAll: whether to notifyall or not
+     * Ask for a lock on this object, without waiting for it.
+     *
+     * @param tid: transaction asking for the lock
+     * @param mode: the requested mode
+     * @return true if the lock is granted, false if it would have to wait
      */
-    public void unlockWrite(TransactionId tid, boolean toNotifyAll){
-        if(holdLocks.contains(tid) && isExclusive){
-            synchronized (this){
-                writeCount--;
-                holdLocks.remove(tid);
-                if(toNotifyAll){
-                    notifyAll();
-                }
+    public synchronized boolean tryAcquire(TransactionId tid, LockMode mode) {
+        LockMode held = holders.get(tid);
+        if (held != null && held.covers(mode))
+            return true;
+        return grantNow(new Request(this, tid, held == null ? mode : held.combine(mode)));
+    }
+
+    /**
+     * grant request if it does not have to queue
+     * @return true if request was granted
+     */
+    private boolean grantNow(Request request) {
+        boolean overtakes = request.isUpgrade() || waiters.isEmpty();
+        if (overtakes && isCompatible(request)) {
+            holders.put(request.tid, request.mode);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if request could be granted given the held locks
+     */
+    private boolean isCompatible(Request request) {
+        for (Map.Entry<TransactionId, LockMode> holder : holders.entrySet()) {
+            if (holder.getKey().equals(request.tid))
+                continue;
+            if (!request.mode.isCompatibleWith(holder.getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * grant the waiting requests from the head of the queue, stopping at
+     * the first one that has to keep waiting
+     */
+    private void grantWaiters() {
+        while (!waiters.isEmpty()) {
+            Request head = waiters.getFirst();
+            if (!isCompatible(head))
+                break;
+            waiters.removeFirst();
+            holders.put(head.tid, head.mode);
+            head.complete(GRANTED);
+        }
+    }
+
+    /**
+     * Withdraw a request that is still waiting.
+     * @param request: request returned by acquire
+     * @return true if the request was withdrawn, false if it was granted before
+     */
+    public synchronized boolean cancel(Request request) {
+        if (!waiters.remove(request))
+            return false;
+        request.complete(CANCELLED);
+        grantWaiters();
+        return true;
+    }
+
+    /**
+     * Release the lock held by tid on this object, and cancel the requests tid
+     * is still waiting for. Requests waiting behind are granted if they can be.
+     * @param tid: the transaction to unlock
+     */
+    public synchronized void unlockAll(TransactionId tid){
+        holders.remove(tid);
+        Iterator<Request> it = waiters.iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+            if (request.tid.equals(tid)) {
+                it.remove();
+                request.complete(CANCELLED);
             }
         }
+        grantWaiters();
     }
 
     /**
-     * unlock a lock without specified read or write, if has write lock on this page, then unlock write.
-     * @param tid: the lock to be unlocked
+     * Return the transactions a waiting request is waiting for: the holders
+     * of an incompatible lock, and the transactions queued ahead of it.
+     * @param request: a request returned by acquire
+     * @return the blocking transactions, empty if the request is not waiting
      */
-    public void unlockAll(TransactionId tid){
-        if(isExclusive)
-            unlockWrite(tid, true);
-        else
-            unlockRead(tid, true);
+    public synchronized Set<TransactionId> blockersOf(Request request) {
+        HashSet<TransactionId> blockers = new HashSet<>();
+        int pos = waiters.indexOf(request);
+        if (pos < 0)
+            return blockers;
+        for (Map.Entry<TransactionId, LockMode> holder : holders.entrySet()) {
+            if (!request.mode.isCompatibleWith(holder.getValue()))
+                blockers.add(holder.getKey());
+        }
+        for (Request ahead : waiters.subList(0, pos)) {
+            blockers.add(ahead.tid);
+        }
+        blockers.remove(request.tid);
+        return blockers;
     }
 
     /**
-     * return true if this page is locked by a given tid
+     * return true if this object is locked by a given tid
      * @param tid
      * @return
      */
-    public boolean isHoldBy(TransactionId tid){
-        return holdLocks.contains(tid);
+    public synchronized boolean isHoldBy(TransactionId tid){
+        return holders.containsKey(tid);
+    }
+
+    /**
+     * @param tid: a transaction
+     * @return the mode of the lock tid holds on this object, null if none
+     */
+    public synchronized LockMode getMode(TransactionId tid){
+        return holders.get(tid);
+    }
+
+    /**
+     * @return true if nobody holds or waits for this lock
+     */
+    public synchronized boolean isFree(){
+        return holders.isEmpty() && waiters.isEmpty();
     }
 
     /**
-     * return true if the page is locked
+     * return true if the object is locked
      * @return
      */
-    public boolean hasLocks(){
-        return !holdLocks.isEmpty();
+    public synchronized boolean hasLocks(){
+        return !holders.isEmpty();
     }
 
     /**
-     * @return all locks on this page
+     * @return a copy of the transactions holding a lock on this object
      */
-    public HashSet<TransactionId> allLocksOnPage(){
-        return holdLocks;
+    public synchronized HashSet<TransactionId> allLocksOnPage(){
+        return new HashSet<>(holders.keySet());
     }
 
     /**
-     * @return true if this page has write lock
+     * @return true if this object has an exclusive lock
      */
-    public boolean isExclusive() {
-        return isExclusive;
+    public synchronized boolean isExclusive() {
+        return holders.containsValue(LockMode.X);
     }
 
     /**
-     * remove all locks on that page
+     * @return true if a transaction holds IX, SIX or X on this object, so
+     *   it writes the object or something below it
      */
-    public void removeAllLocks(){
-        for(TransactionId tid : holdLocks){
-            unlockAll(tid);
+    public synchronized boolean hasWriters() {
+        for (LockMode mode : holders.values()) {
+            if (mode.getIntention() == LockMode.IX)
+                return true;
         }
+        return false;
     }
 
+    /**
+     * @return the number of requests waiting for this object
+     */
+    public synchronized int getNumWaiters() {
+        return waiters.size();
+    }
 }
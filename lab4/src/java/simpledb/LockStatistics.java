@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockStatistics counts the lock requests that had to wait, per page and
+ * per table, with the time they waited, and the deadlock aborts and upgrade
+ * conflicts of a LockManager.
+ * <p>
+ * It is only allocated while statistics are enabled, and only requests that
+ * wait are recorded, so a lock granted right away costs nothing more than a
+ * null check. Waits for a record are counted on its page.
+ *
+ * @see LockManager#setStatisticsEnabled
+ * @Threadsafe
+ */
+public class LockStatistics {
+    /** the waits on one page or table */
+    public static class Contention {
+        private final LockId id;
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+
+        private Contention(LockId id) {
+            this.id = id;
+        }
+
+        /** @return the page or table the waits were on */
+        public LockId getLockId() {
+            return id;
+        }
+
+        public long getWaits() {
+            return waits.get();
+        }
+
+        public long getWaitMillis() {
+            return waitNanos.get() / 1000000;
+        }
+
+        private void record(long nanos) {
+            waits.incrementAndGet();
+            waitNanos.addAndGet(nanos);
+        }
+    }
+
+    private final ConcurrentHashMap<LockId, Contention> pages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<LockId, Contention> tables = new ConcurrentHashMap<>();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong deadlockAborts = new AtomicLong();
+    private final AtomicLong upgradeConflicts = new AtomicLong();
+
+    /**
+     * Record a request that waited.
+     * @param id: the object the request was for
+     * @param nanos: how long it waited, granted or not
+     */
+    void recordWait(LockId id, long nanos) {
+        waits.incrementAndGet();
+        waitNanos.addAndGet(nanos);
+        LockId table = LockId.table(id.getTableId());
+        tables.computeIfAbsent(table, Contention::new).record(nanos);
+        if (id.getPageId() != null) {
+            LockId page = LockId.page(id.getPageId());
+            pages.computeIfAbsent(page, Contention::new).record(nanos);
+        }
+    }
+
+    /** Record a transaction aborted by the deadlock policy. */
+    void recordDeadlockAbort() {
+        deadlockAborts.incrementAndGet();
+    }
+
+    /** Record the upgrade of a held lock that had to wait. */
+    void recordUpgradeConflict() {
+        upgradeConflicts.incrementAndGet();
+    }
+
+    /** @return the number of lock requests that waited */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /** @return the total time lock requests waited, in milliseconds */
+    public long getWaitMillis() {
+        return waitNanos.get() / 1000000;
+    }
+
+    /** @return the number of transactions aborted by the deadlock policy */
+    public long getDeadlockAborts() {
+        return deadlockAborts.get();
+    }
+
+    /** @return the number of lock upgrades that waited */
+    public long getUpgradeConflicts() {
+        return upgradeConflicts.get();
+    }
+
+    /**
+     * @param n: the number of pages to return
+     * @return the n pages with the longest total wait, longest first
+     */
+    public List<Contention> getHottestPages(int n) {
+        return hottest(pages, n);
+    }
+
+    /**
+     * @param n: the number of tables to return
+     * @return the n tables with the longest total wait, longest first
+     */
+    public List<Contention> getHottestTables(int n) {
+        return hottest(tables, n);
+    }
+
+    private static List<Contention> hottest(Map<LockId, Contention> map, int n) {
+        ArrayList<Contention> all = new ArrayList<>(map.values());
+        Collections.sort(all, new Comparator<Contention>() {
+            public int compare(Contention a, Contention b) {
+                int c = Long.compare(b.waitNanos.get(), a.waitNanos.get());
+                return c != 0 ? c : Long.compare(b.getWaits(), a.getWaits());
+            }
+        });
+        return all.subList(0, Math.min(n, all.size()));
+    }
+}
@@ -3,8 +3,9 @@ package simpledb;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.*;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -40,42 +41,115 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file is a control file holding the LSN of the last written
+checkpoint, or -1 if there are no checkpoints, and the first LSN of the
+log (see LogSegments)
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in fixed-size segment files next to it,
+a record may span two segments.  Log records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id, and the LSN of the previous record of the same
+transaction, or -1 for its first record. Rollback follows this chain
+backward from the last record of the transaction, so it only reads the
+records of the transaction it undoes.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> Pages that keep a page LSN (HeapPage, see PageCodecs) are stamped
+with the LSN of the UPDATE or DELTA record that logs them before they are
+written, so the page on disk tells which records it holds: recovery skips
+a record if the page LSN is at least the record LSN, and the undo of an
+aborted transaction if it is at least the LSN of its ABORT record. A
+HeapFile keeps the LSNs of its pages next to its pages, with the id of
+the log: page LSNs of another log are not known, and every record is
+redone.
+
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  Pages and page ids are
+written with the codec registered for their class in PageCodecs,
+behind a one byte tag.
+
+<li>DELTA records hold the page codec tag and page id of an update,
+followed by a PageDelta: the byte ranges the before and after images
+differ in, with the bytes of both images. They are redone and undone on
+the page as it is on disk. A transaction logs a page as a DELTA record
+the first time it logs it, if the delta is smaller than the two images,
+and as an UPDATE record afterwards.
+
+<li> Several transactions may change different records of a page at
+once. A page written with the changes of several of them is logged as one
+record per transaction, each adding the slots of its transaction to the
+image before it. Undo, and the redo of a DELTA record, only set the bits
+a record changed, so the records of one transaction are undone without
+touching the slots of the others.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction. They are followed by the dirty page table:
+an integer count of pages, then for each page its serialized page id and
+the offset of the first record logging it since it was last written.
+
+<li> Checkpoints are fuzzy: they do not flush the buffer pool, and
+transactions keep running while the record is written. Committed pages
+are on disk already (FORCE), and the pages logged by a flush that is
+still writing them are in the dirty page table, so redo starts at the
+oldest of their records rather than at the checkpoint. A
+CheckpointScheduler can take checkpoints in the background.
 
 </ul>
 
+<p> <u> Log buffer: </u>
+<p>
+
+Records are serialized into an in-memory log buffer, which is written to
+the segments in one call when it is full, when the log is forced, and
+before the log is read. A position in the log is identified by its LSN,
+the number of bytes appended to the log before it, and records never move:
+truncation only deletes the segments before the first LSN still needed.
+getFlushedLsn() and getDurableLsn() tell how much of the log reached the
+segments and the disk; write ahead logging still holds because pages are
+only written after a force.
+
+<p> <u> Group commit: </u>
+<p>
+
+A committing transaction appends its COMMIT record and then waits until
+the log is forced past it, outside the LogFile monitor. The first waiter
+becomes the leader: it waits for up to the group commit delay, or until
+the batch size of committers are waiting, and forces the log once for all
+of them. Committers arriving while the log is forced form the next batch.
+A force only holds the monitor to flush the log buffer: the segments are
+synced without it, so the next batch appends its records meanwhile.
+
+<p> <u> Asynchronous commit: </u>
+<p>
+
+A transaction may instead commit asynchronously: it returns once its
+COMMIT record is in the log buffer, and a LogFlusher forces the log at a
+short interval. A crash can lose the last commits, never more than the
+interval, but not corrupt the database: pages are still only written
+after the records logging them are forced, so a lost commit is rolled
+back by recovery like any unfinished transaction. The LogFlusher is
+started when asynchronous commits are enabled, never by a commit; an
+asynchronous commit without a running LogFlusher is forced right away.
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments; // protected by this
+    private final LogReader reader; // reads records at any LSN, protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -83,7 +157,9 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
@@ -93,6 +169,60 @@ public class LogFile {
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // last record of each live transaction, the head of its prev-LSN chain, protected by this
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+    // pages each live transaction logged, protected by this
+    HashMap<Long,Set<PageId>> tidToLoggedPages = new HashMap<Long,Set<PageId>>();
+    int recoveryWrites; // pages written by the last recovery
+    // logged pages not written yet, with the offset of their first record since written, protected by this
+    HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+    private long lastCheckpointLsn = 0; // protected by this
+    private long lastCheckpointMillis = System.currentTimeMillis(); // protected by this
+    private CheckpointScheduler checkpointScheduler; // protected by this
+    private int recoveryThreads; // threads replaying pages during recovery, protected by this
+    private volatile boolean asyncCommitDefault;
+    private long asyncCommitFlushMillis; // protected by this
+    private LogFlusher logFlusher; // forces asynchronous commits, protected by this
+
+    /** System property with the number of committers a group commit waits for. */
+    public static final String GROUP_COMMIT_BATCH_PROPERTY = "simpledb.GroupCommitBatchSize";
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 32;
+    /** System property with the longest time a group commit waits for its batch, in microseconds. */
+    public static final String GROUP_COMMIT_DELAY_PROPERTY = "simpledb.GroupCommitDelayMicros";
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+
+    /** System property with the size of the log buffer in bytes. */
+    public static final String LOG_BUFFER_SIZE_PROPERTY = "simpledb.LogBufferSize";
+    public static final int DEFAULT_LOG_BUFFER_SIZE = 64 * 1024;
+
+    /** System property with the longest time between two background checkpoints, in milliseconds. */
+    public static final String CHECKPOINT_INTERVAL_PROPERTY = "simpledb.CheckpointIntervalMillis";
+    /** System property with the most log bytes between two background checkpoints. */
+    public static final String CHECKPOINT_LOG_BYTES_PROPERTY = "simpledb.CheckpointLogBytes";
+
+    /** System property with the number of threads replaying pages during recovery. */
+    public static final String RECOVERY_THREADS_PROPERTY = "simpledb.RecoveryThreads";
+
+    /** System property with the size of the segment files of a new log in bytes. */
+    public static final String LOG_SEGMENT_SIZE_PROPERTY = "simpledb.LogSegmentSize";
+    public static final long DEFAULT_LOG_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** System property set to true for transactions to commit asynchronously by default. */
+    public static final String ASYNC_COMMIT_PROPERTY = "simpledb.AsyncCommit";
+    /** System property with the time between two forces of asynchronous commits, in milliseconds. */
+    public static final String ASYNC_COMMIT_FLUSH_PROPERTY = "simpledb.AsyncCommitFlushMillis";
+    public static final long DEFAULT_ASYNC_COMMIT_FLUSH = 10;
+
+    private final ByteBuffer logBuffer; // appended records not in the file yet, protected by this
+    private final DataOutputStream out; // serializes records into logBuffer, protected by this
+    private final Object forceLock = new Object(); // taken after this, never before
+    private long durableLsn = 0; // end of the log known to be on disk, protected by forceLock
+    private boolean forcing = false; // a group commit leader is running, protected by forceLock
+    private int committersWaiting = 0; // protected by forceLock
+    private int groupCommitBatch; // protected by forceLock
+    private long groupCommitDelayNanos; // protected by forceLock
+    private long forces = 0; // protected by forceLock
+    private boolean syncing = false; // a force is syncing segments, protected by forceLock
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -106,9 +236,29 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, Long.getLong(LOG_SEGMENT_SIZE_PROPERTY, DEFAULT_LOG_SEGMENT_SIZE));
+    }
+
+    /** Constructor.
+        @param f The log file's name, the control file of its segments
+        @param segmentSize size of the segments of a new log
+        @see LogSegments
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
+        reader = new LogReader(segments);
         recoveryUndecided = true;
+        logBuffer = ByteBuffer.allocate(Integer.getInteger(LOG_BUFFER_SIZE_PROPERTY, DEFAULT_LOG_BUFFER_SIZE));
+        out = new DataOutputStream(new LogBufferStream());
+        groupCommitBatch = Integer.getInteger(GROUP_COMMIT_BATCH_PROPERTY, DEFAULT_GROUP_COMMIT_BATCH);
+        groupCommitDelayNanos = Long.getLong(GROUP_COMMIT_DELAY_PROPERTY, DEFAULT_GROUP_COMMIT_DELAY) * 1000;
+        recoveryThreads = Integer.getInteger(RECOVERY_THREADS_PROPERTY,
+                Runtime.getRuntime().availableProcessors());
+        asyncCommitDefault = Boolean.getBoolean(ASYNC_COMMIT_PROPERTY);
+        asyncCommitFlushMillis = Long.getLong(ASYNC_COMMIT_FLUSH_PROPERTY, DEFAULT_ASYNC_COMMIT_FLUSH);
+        if (asyncCommitDefault)
+            enableLogFlusher();
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -128,11 +278,145 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset();
+            reader.invalidate();
+            logBuffer.clear();
+            currentOffset = position();
+        }
+    }
+
+    /** appends to the log buffer, writing it to the file when it is full */
+    private class LogBufferStream extends OutputStream {
+        public void write(int b) throws IOException {
+            if (!logBuffer.hasRemaining())
+                flushBuffer();
+            logBuffer.put((byte) b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!logBuffer.hasRemaining())
+                    flushBuffer();
+                int n = Math.min(len, logBuffer.remaining());
+                logBuffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /** reads the log from any LSN, through a window of recently read bytes */
+    private static class LogReader extends DataInputStream {
+        private final SegmentStream stream;
+
+        LogReader(LogSegments segments) {
+            this(new SegmentStream(segments));
+        }
+
+        private LogReader(SegmentStream stream) {
+            super(stream);
+            this.stream = stream;
+        }
+
+        void seek(long lsn) {
+            stream.lsn = lsn;
+        }
+
+        long getFilePointer() {
+            return stream.lsn;
+        }
+
+        /** forget the bytes read so far, the log was reset */
+        void invalidate() {
+            stream.windowLength = 0;
+        }
+    }
+
+    private static class SegmentStream extends InputStream {
+        private static final int WINDOW_SIZE = 8192;
+        private final LogSegments segments;
+        private final byte[] window = new byte[WINDOW_SIZE];
+        private long windowStart = 0;
+        private int windowLength = 0;
+        long lsn = 0;
+
+        SegmentStream(LogSegments segments) {
+            this.segments = segments;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (lsn < windowStart || lsn >= windowStart + windowLength) {
+                // bytes before the end of the log never change, keep them
+                int n = segments.read(lsn, window, 0, WINDOW_SIZE);
+                if (n < 0)
+                    return -1;
+                windowStart = lsn;
+                windowLength = n;
+            }
+            int n = (int) Math.min(len, windowStart + windowLength - lsn);
+            System.arraycopy(window, (int) (lsn - windowStart), b, off, n);
+            lsn += n;
+            return n;
+        }
+
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, segments.getEnd() - lsn));
+            lsn += skipped;
+            return skipped;
+        }
+    }
+
+    /** Return the LSN the next record is appended at */
+    synchronized long position() {
+        return segments.getEnd() + logBuffer.position();
+    }
+
+    /** Write the log buffer to the end of the log, without forcing it */
+    synchronized void flushBuffer() throws IOException {
+        logBuffer.flip();
+        segments.append(logBuffer);
+        logBuffer.clear();
+    }
+
+    /** Return the LSN the next record is appended at */
+    public synchronized long getCurrentLsn() {
+        return position();
+    }
+
+    /** Return the LSN up to which the log was written to the segments */
+    public synchronized long getFlushedLsn() {
+        return segments.getEnd();
+    }
+
+    /** Return the number of segments dropped by truncation */
+    public synchronized int getSegmentsDropped() {
+        return segments.getSegmentsDropped();
+    }
+
+    /** Return the file holding a segment of the log */
+    File getSegmentFile(long segment) {
+        return segments.segmentFile(segment);
+    }
+
+    /**
+     * @return the id of this log, HeapFile keeps it with the page LSNs
+     *   it stores, see LogSegments#getLogId
+     */
+    public long getLogId() {
+        return segments.getLogId();
+    }
+
+    /** Return the LSN up to which the log is known to be on disk */
+    public long getDurableLsn() {
+        synchronized (forceLock) {
+            return durableLsn;
         }
     }
 
@@ -159,46 +443,233 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                writeRecordHeader(ABORT_RECORD, tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = position();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
+                tidToLoggedPages.remove(tid.getId());
             }
         }
+        // the transaction keeps its locks until the record is on disk
+        force();
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk. Returns once the record is on disk,
+        the force is shared with the transactions committing at the
+        same time.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, false);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Write a commit record for the specified tid.  A synchronous commit
+        returns once the record is on disk, like logCommit(tid).  An
+        asynchronous commit returns as soon as the record is in the log
+        buffer, and the LogFlusher of this log forces it within its
+        interval: a crash in between rolls the transaction back.  If no
+        LogFlusher runs, the commit is forced like a synchronous one.
+
+        @param tid The committing transaction.
+        @param async true to return before the record is on disk
+        @see LogFlusher
+    */
+    public void logCommit(TransactionId tid, boolean async) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            writeRecordHeader(COMMIT_RECORD, tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = position();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            tidToLoggedPages.remove(tid.getId());
+            lsn = getCurrentLsn();
+            if (async && logFlusher != null)
+                return;
+        }
+        groupForce(lsn);
+    }
+
+    /**
+     * @return true if transactions commit asynchronously unless told otherwise
+     */
+    public boolean isAsyncCommitDefault() {
+        return asyncCommitDefault;
+    }
+
+    /**
+     * Choose whether new transactions commit asynchronously by default, see
+     * {@link #ASYNC_COMMIT_PROPERTY}.  Enabling it starts the LogFlusher.
+     */
+    public void setAsyncCommitDefault(boolean asyncCommitDefault) {
+        this.asyncCommitDefault = asyncCommitDefault;
+        if (asyncCommitDefault)
+            enableLogFlusher();
+    }
+
+    /**
+     * Set the time between two forces of asynchronous commits, it bounds
+     * the commits a crash can lose.  Replaces the running LogFlusher, if any.
+     *
+     * @param intervalMillis time between two forces, in milliseconds
+     */
+    public void setAsyncCommitFlushMillis(long intervalMillis) {
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("log flush interval must be positive");
+        boolean running;
+        synchronized (this) {
+            asyncCommitFlushMillis = intervalMillis;
+            running = logFlusher != null;
+        }
+        if (running) {
+            disableLogFlusher();
+            enableLogFlusher();
+        }
+    }
+
+    /**
+     * Start forcing asynchronous commits in the background, if no
+     * LogFlusher runs yet.  The thread is started outside the monitor.
+     */
+    public void enableLogFlusher() {
+        LogFlusher flusher;
+        synchronized (this) {
+            if (logFlusher != null)
+                return;
+            flusher = new LogFlusher(this, asyncCommitFlushMillis);
+            logFlusher = flusher;
+        }
+        // a flusher shut down before it starts exits right away
+        flusher.start();
+    }
+
+    /**
+     * Stop forcing asynchronous commits in the background, and force the
+     * ones already appended.  Asynchronous commits are forced right away
+     * until the LogFlusher is enabled again.
+     */
+    public void disableLogFlusher() {
+        LogFlusher flusher;
+        synchronized (this) {
+            flusher = logFlusher;
+            logFlusher = null;
+        }
+        if (flusher == null)
+            return;
+        // joined outside the monitor, the flusher takes it to force
+        flusher.shutdown();
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        try {
+            force();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Wait until the log is on disk up to lsn, forcing it as the leader
+        of a group commit if no force is running.
+
+        @param lsn The LSN the log must be on disk up to
+    */
+    private void groupForce(long lsn) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized (forceLock) {
+                    committersWaiting++;
+                    forceLock.notifyAll();
+                    try {
+                        while (durableLsn < lsn && forcing) {
+                            try {
+                                forceLock.wait();
+                            } catch (InterruptedException e) {
+                                interrupted = true;
+                            }
+                        }
+                        if (durableLsn >= lsn)
+                            return;
+                        // lead the next group: give the batch time to fill up
+                        forcing = true;
+                        long deadline = System.nanoTime() + groupCommitDelayNanos;
+                        long remaining = groupCommitDelayNanos;
+                        while (committersWaiting < groupCommitBatch && remaining > 0) {
+                            try {
+                                forceLock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                            } catch (InterruptedException e) {
+                                interrupted = true;
+                            }
+                            remaining = deadline - System.nanoTime();
+                        }
+                    } finally {
+                        committersWaiting--;
+                    }
+                }
+                try {
+                    force();
+                } finally {
+                    synchronized (forceLock) {
+                        forcing = false;
+                        forceLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Set how group commit batches committers.
+        @param batchSize The number of waiting committers a leader forces
+        the log for without waiting longer
+        @param maxDelayMicros The longest time a leader waits for its
+        batch, 0 to force right away
+    */
+    public void setGroupCommit(int batchSize, long maxDelayMicros) {
+        synchronized (forceLock) {
+            groupCommitBatch = batchSize;
+            groupCommitDelayNanos = maxDelayMicros * 1000;
+        }
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Return the number of times the log was forced to disk */
+    public long getForces() {
+        synchronized (forceLock) {
+            return forces;
+        }
+    }
+
+    /** Write an UPDATE or DELTA record to disk for the specified tid and page
+        (with provided         before and after images.) The before image
+        must be the last committed image of the page.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record, the page LSN of the after image
+        once it is written
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + position());
         preAppend();
         /* update record conists of
 
@@ -208,92 +679,177 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Set<PageId> logged = tidToLoggedPages.get(tid.getId());
+        if (logged == null) {
+            logged = new HashSet<PageId>();
+            tidToLoggedPages.put(tid.getId(), logged);
+        }
+        // each image is copied out of its page once, for the delta and the record
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        PageDelta delta = null;
+        if (logged.add(after.getId()))
+            delta = PageDelta.diff(beforeData, afterData);
+
+        if (delta != null && delta.getSerializedSize() < 2 * BufferPool.getPageSize()) {
+            writeRecordHeader(DELTA_RECORD, tid.getId());
+            writePageHeader(out, after);
+            delta.write(out);
+        } else {
+            writeRecordHeader(UPDATE_RECORD, tid.getId());
+
+            writePageData(out, before, beforeData);
+            writePageData(out, after, afterData);
+        }
+        if (!dirtyPages.containsKey(after.getId()))
+            dirtyPages.put(after.getId(), currentOffset);
+        long lsn = currentOffset;
+        out.writeLong(currentOffset);
+        currentOffset = position();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /**
+     * Remove pages from the dirty page table once they are written to disk
+     * after their records.
+     * @param pages: the pages written
+     */
+    public synchronized void pagesWritten(Collection<Page> pages) {
+        for (Page page : pages)
+            dirtyPages.remove(page.getId());
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Append the type, tid and prev-LSN every record of a transaction
+        starts with, and make the record the last one of the transaction */
+    private void writeRecordHeader(int type, long tid) throws IOException {
+        out.writeInt(type);
+        out.writeLong(tid);
+        Long prev = tidToLastLogRecord.put(tid, currentOffset);
+        out.writeLong(prev == null ? NO_PREV_LSN : prev);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        writePageData(raf, p, p.getPageData());
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
+    /** Write a page image already taken out of its page with getPageData */
+    private void writePageData(DataOutput raf, Page p, byte[] pageData) throws IOException{
+        writePageHeader(raf, p);
         raf.writeInt(pageData.length);
         raf.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    void writePageHeader(DataOutput raf, Page p) throws IOException{
+        writePageHeader(raf, PageCodecs.codecOf(p), p.getId());
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    void writePageHeader(DataOutput raf, PageCodecs.Codec codec, PageId pid) throws IOException{
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        //page data is:
+        // page codec tag (with the page class name if it has no codec)
+        // page id fields
+        // page data bytes
+        // page data
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        PageCodecs.writeHeader(raf, codec, pid);
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    void writePageId(DataOutput raf, PageId pid) throws IOException{
+        PageCodecs.writePageId(raf, pid);
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    Page readPageData(DataInput raf) throws IOException {
+        PageCodecs.Codec codec = PageCodecs.readHeader(raf);
+        PageId pid = codec.readPageId(raf);
+        int pageSize = raf.readInt();
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+        return codec.newPage(pid, pageData);
+    }
+
+    /** an UPDATE or DELTA record read back from the log */
+    class LoggedUpdate {
+        final PageCodecs.Codec codec;
+        final PageId pid;
+        final PageDelta delta; // null for an UPDATE record
+        final byte[] before; // images of an UPDATE record
+        final byte[] after;
+
+        LoggedUpdate(PageCodecs.Codec codec, PageId pid, PageDelta delta) {
+            this.codec = codec;
+            this.pid = pid;
+            this.delta = delta;
+            this.before = null;
+            this.after = null;
         }
-        return newPage;
 
+        LoggedUpdate(Page before, Page after) {
+            this.codec = PageCodecs.codecOf(after);
+            this.pid = after.getId();
+            this.delta = null;
+            this.before = before.getPageData();
+            this.after = after.getPageData();
+        }
+
+        /**
+         * Redo or undo the record. Redoing an UPDATE record gives its after
+         * image, every other case only sets the bits the update changed:
+         * transactions writing other records of the page may have changed
+         * the rest of it since.
+         * @param image: the page image the record applies to, not changed,
+         *   only needed to redo a DELTA record or to undo a record
+         * @param redo: true to redo the record, false to undo it
+         * @return the image with the record redone or undone
+         */
+        byte[] apply(byte[] image, boolean redo) {
+            if (delta == null && redo)
+                return after.clone();
+            byte[] data = image.clone();
+            if (delta == null) {
+                PageDelta.applyMasked(data, 0, before, before, after);
+                return data;
+            }
+            if (redo)
+                delta.redo(data);
+            else
+                delta.undo(data);
+            return data;
+        }
+
+        /** write the payload of a DELTA record */
+        void write(DataOutput raf) throws IOException {
+            writePageHeader(raf, codec, pid);
+            delta.write(raf);
+        }
+    }
+
+    LoggedUpdate readDeltaData(DataInput raf) throws IOException {
+        PageCodecs.Codec codec = PageCodecs.readHeader(raf);
+        PageId pid = codec.readPageId(raf);
+        return new LoggedUpdate(codec, pid, PageDelta.read(raf));
+    }
+
+    /** read the payload of an UPDATE or DELTA record */
+    LoggedUpdate readUpdate(DataInput raf, int type) throws IOException {
+        if (type == DELTA_RECORD)
+            return readDeltaData(raf);
+        Page before = readPageData(raf);
+        Page after = readPageData(raf);
+        return new LoggedUpdate(before, after);
+    }
+
+    static byte[] readDiskImage(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return file.readPage(pid).getPageData();
+    }
+
+    PageId readPageId(DataInput raf) throws IOException {
+        return PageCodecs.readPageId(raf);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -308,150 +864,161 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        writeRecordHeader(BEGIN_RECORD, tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = position();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a fuzzy checkpoint record: the live
+        transactions and the dirty page table. No page is flushed, and
+        transactions are only held up while the record is appended. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        // takes the buffer pool monitor, which is never taken after this
+        Database.getBufferPool().saveResidentPages(Database.getHotPagesFile());
+        long startCpOffset;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + reader.getFilePointer());
+            preAppend();
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = position();
+            lastCheckpointLsn = getCurrentLsn();
+            lastCheckpointMillis = System.currentTimeMillis();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+            out.writeLong(NO_PREV_LSN);
+
+            //write list of outstanding transactions
+            out.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                out.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> page : dirtyPages.entrySet()) {
+                writePageId(out, page.getKey());
+                out.writeLong(page.getValue());
             }
+            out.writeLong(currentOffset);
+            currentOffset = position();
+        }
+
+        //once the CP is on disk, make sure the CP location in the
+        // control file is updated
+        force();
+        synchronized (this) {
+            // a later checkpoint may have been forced first
+            if (startCpOffset > segments.getCheckpoint())
+                segments.setCheckpoint(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    /** Skip the payload of a CHECKPOINT record, up to its end offset */
+    void skipCheckpoint(DataInput raf) throws IOException {
+        int numXactions = raf.readInt();
+        raf.skipBytes(numXactions * LONG_SIZE * 2);
+        int numDirty = raf.readInt();
+        while (numDirty-- > 0) {
+            readPageId(raf);
+            raf.readLong();
+        }
+    }
 
-        long minLogRecord = cpLoc;
+    /** @return the LSN of the last checkpoint written by this log */
+    public synchronized long getLastCheckpointLsn() {
+        return lastCheckpointLsn;
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** @return when the last checkpoint was written, or this log opened, in milliseconds */
+    public synchronized long getLastCheckpointMillis() {
+        return lastCheckpointMillis;
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+    /** @return true until recover() is called or a record is appended */
+    synchronized boolean isRecoveryUndecided() {
+        return recoveryUndecided;
+    }
 
-            int numOutstanding = raf.readInt();
+    /**
+     * Take checkpoints in the background, when intervalMillis elapsed or
+     * maxLogBytes were logged since the last one. Replaces any previous
+     * scheduler of this log.
+     *
+     * @param intervalMillis longest time between two checkpoints, 0 for no limit
+     * @param maxLogBytes most log bytes between two checkpoints, 0 for no limit
+     * @see CheckpointScheduler
+     */
+    public synchronized void enableCheckpointScheduler(long intervalMillis, long maxLogBytes) {
+        disableCheckpointScheduler();
+        checkpointScheduler = new CheckpointScheduler(this, intervalMillis, maxLogBytes);
+        checkpointScheduler.start();
+    }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+    /**
+     * Stop taking checkpoints in the background.
+     */
+    public synchronized void disableCheckpointScheduler() {
+        if (checkpointScheduler != null) {
+            checkpointScheduler.shutdown();
+            checkpointScheduler = null;
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption: the segments before the first record recovery
+        still needs are deleted, the other records stay where they are. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        flushBuffer();
+        long cpLoc = segments.getCheckpoint();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+        long minLogRecord = cpLoc;
+        reader.seek(cpLoc);
+        int cpType = reader.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = reader.readLong();
+        reader.skipBytes(LONG_SIZE); // no prev-LSN
+
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        int numOutstanding = reader.readInt();
 
-            } catch (EOFException e) {
-                break;
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = reader.readLong();
+            long firstLogRecord = reader.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // redo starts at the oldest record of the dirty pages
+        int numDirty = reader.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(reader);
+            long recLsn = reader.readLong();
+            if (recLsn < minLogRecord) {
+                minLogRecord = recLsn;
+            }
+        }
 
-        currentOffset = raf.getFilePointer();
-//        print();
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord);
+        segments.truncate(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -468,47 +1035,42 @@ public class LogFile {
             synchronized(this) {
 //                print();
                 preAppend();
+                flushBuffer();
                 // some code goes here
-                long originalOffset = currentOffset;
                 long longTid = tid.getId();
                 if(!tidToFirstLogRecord.containsKey(longTid))
                     throw new NoSuchElementException("no such tid in log records");
-                long firstLog = tidToFirstLogRecord.get(longTid);
-                raf.seek(firstLog);
 
-                while(true){
-                    try {
-                        int logType = raf.readInt();
-                        long logTid = raf.readLong();
-                        if(logType == UPDATE_RECORD && logTid == longTid){
-                            // if this tid update some page
-                            // revert to old version and write to disk
-                            Page beforeImg = readPageData(raf);
-                            int tableid = beforeImg.getId().getTableId();
-                            Database.getCatalog().getDatabaseFile(tableid).writePage(beforeImg);
-                            Database.getBufferPool().discardPage(beforeImg.getId());
-                            readPageData(raf);
-
-                        } else if (logType == UPDATE_RECORD){
-                            // else if this update is done by other tid
-                            // skip two page data
-                            readPageData(raf);
-                            readPageData(raf);
-                        } else if (logType == CHECKPOINT_RECORD){
-                            // check point, skip n * 2 * tid length
-                            int numXactions = raf.readInt();
-                            raf.skipBytes(numXactions * LONG_SIZE * 2);
-                        } else if (logTid == longTid && logType == ABORT_RECORD){
-                            break;
-                        }
-                        raf.readLong();
-                    } catch (EOFException e){
-                        break;
+                // walk the records of tid from the last one and undo each
+                // of them on the page as it is on disk; an undo only sets
+                // the bits its record changed, so the slots other
+                // transactions changed on the page are kept
+                LinkedHashMap<PageId, PageCodecs.Codec> codecs = new LinkedHashMap<>();
+                HashMap<PageId, byte[]> restored = new HashMap<>();
+                Long lsn = tidToLastLogRecord.get(longTid);
+                long prevLsn = lsn == null ? NO_PREV_LSN : lsn;
+                while (prevLsn != NO_PREV_LSN) {
+                    reader.seek(prevLsn);
+                    int logType = reader.readInt();
+                    reader.readLong(); // tid
+                    prevLsn = reader.readLong();
+                    if (logType != UPDATE_RECORD && logType != DELTA_RECORD)
+                        continue;
+                    LoggedUpdate update = readUpdate(reader, logType);
+                    byte[] image = restored.get(update.pid);
+                    if (image == null) {
+                        image = readDiskImage(update.pid);
+                        codecs.put(update.pid, update.codec);
                     }
+                    restored.put(update.pid, update.apply(image, false));
+                }
+                // revert to old version and write to disk
+                for (Map.Entry<PageId, PageCodecs.Codec> page : codecs.entrySet()) {
+                    PageId pid = page.getKey();
+                    Page beforeImg = page.getValue().newPage(pid, restored.get(pid));
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(beforeImg);
+                    Database.getBufferPool().discardRolledBackPage(pid, tid);
                 }
-
-
-                currentOffset = originalOffset;
             }
         }
     }
@@ -517,10 +1079,14 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            disableCheckpointScheduler();
+            disableLogFlusher();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -530,128 +1096,349 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery makes a single pass over the log, from the first record
+        of the transactions live at the last checkpoint, or the first
+        record of a page of its dirty page table if that is older. The pass
+        sorts the updates after the checkpoint by page, in log order,
+        with the undo of the transactions that aborted on the way, and
+        collects the updates of the transactions that never finished, to
+        undo them in reverse order.
+        <p>
+        The pages are then sorted by table and page number and split into
+        contiguous runs, each replayed by its own thread: the updates of a
+        page past its page LSN on disk are applied to an in-memory image of
+        it, and the image is written once, if any was. The transactions that
+        never finished are undone under the LSN of the ABORT record written
+        for them, forced before the pages are written, so a second recovery
+        skips their undo as well.
     */
     public void recover() throws IOException {
+        HashMap<PageId, PageReplay> pages = new HashMap<>();
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
-//                print();
-                long originalOffset = currentOffset;
-                // to the beginning of log file to find the last checkpoint
-
-                raf.seek(0);
-                long lastCkpOffset = raf.readLong();
-                boolean hasCkp = false;
-                // if the checkpoint sign == -1, means no checkpoint, we can start the recover from the beginning
-                if(lastCkpOffset != -1){
-                    raf.seek(lastCkpOffset);
-                    hasCkp = true;
-                }
-                //undo: work with the transaction table
-                Set<Long> transTable = new HashSet<>();
-                if(hasCkp){
-//                    System.out.println("has checkpoint at: " + lastCkpOffset);
-                    // skip type and tid
-                    // from the checkpoint log find all tids that needs undo
-                    raf.skipBytes(INT_SIZE + LONG_SIZE);
-                    int numXactions = raf.readInt();
-                    while(numXactions-- > 0){
-                       long ckpTid = raf.readLong();
-                       long ckpOffset = raf.readLong();
-                       transTable.add(ckpTid);
-                       tidToFirstLogRecord.put(ckpTid, ckpOffset);
+                flushBuffer();
+                recoveryWrites = 0;
+
+                // analysis: the transactions live at the last checkpoint,
+                // and its dirty page table. Records before the checkpoint
+                // are redone if their page was not written since; the
+                // updates of the live transactions are read for undo.
+                long lastCkpOffset = segments.getCheckpoint();
+                HashMap<Long, ArrayList<LoggedUpdate>> live = new HashMap<>();
+                HashMap<PageId, Long> recLsns = new HashMap<>();
+                long redoStart = segments.getStart();
+                long scanStart = segments.getStart();
+                if (lastCkpOffset != NO_CHECKPOINT_ID) {
+                    reader.seek(lastCkpOffset);
+                    // skip type, tid and prev-LSN
+                    reader.skipBytes(INT_SIZE + 2 * LONG_SIZE);
+                    int numXactions = reader.readInt();
+                    while (numXactions-- > 0) {
+                        long ckpTid = reader.readLong();
+                        long ckpOffset = reader.readLong();
+                        live.put(ckpTid, new ArrayList<LoggedUpdate>());
+                        tidToFirstLogRecord.put(ckpTid, ckpOffset);
+                    }
+                    int numDirty = reader.readInt();
+                    while (numDirty-- > 0) {
+                        PageId pid = readPageId(reader);
+                        recLsns.put(pid, reader.readLong());
                     }
-                    raf.skipBytes(LONG_SIZE); // skip the end offset
+                    reader.skipBytes(LONG_SIZE); // skip the end offset
+                    redoStart = reader.getFilePointer();
+                    scanStart = redoStart;
+                    for (long firstLog : tidToFirstLogRecord.values())
+                        scanStart = Math.min(scanStart, firstLog);
+                    for (long recLsn : recLsns.values())
+                        scanStart = Math.min(scanStart, recLsn);
                 }
-                // redo
-                while (true){
+
+                // redo, and collect the updates to undo
+                reader.seek(scanStart);
+                while (true) {
                     try {
-                        int logType = raf.readInt();
-                        long logTid = raf.readLong();
-//                        System.out.println("log type: " + logType + " at tid : " + logTid);
-                        switch (logType){
+                        long offset = reader.getFilePointer();
+                        int logType = reader.readInt();
+                        long logTid = reader.readLong();
+                        reader.readLong(); // prev-LSN
+                        if (logType != CHECKPOINT_RECORD)
+                            tidToLastLogRecord.put(logTid, offset);
+                        boolean redo = offset >= redoStart;
+                        switch (logType) {
                             case BEGIN_RECORD:
-                                transTable.add(logTid);
-                                tidToFirstLogRecord.put(logTid, raf.readLong());
+                                long firstLog = reader.readLong();
+                                if (redo) {
+                                    live.put(logTid, new ArrayList<LoggedUpdate>());
+                                    tidToFirstLogRecord.put(logTid, firstLog);
+                                }
                                 break;
                             case COMMIT_RECORD:
-                                transTable.remove(logTid);
-                                raf.skipBytes(LONG_SIZE);
+                                live.remove(logTid);
+                                tidToFirstLogRecord.remove(logTid);
+                                tidToLastLogRecord.remove(logTid);
+                                reader.skipBytes(LONG_SIZE);
                                 break;
                             case ABORT_RECORD:
-                                transTable.remove(logTid);
-//                                rollback(logTid);
-                                logAbort(new TransactionId(logTid));
-                                raf.skipBytes(LONG_SIZE);
+                                // the rollback is not logged, repeat it
+                                ArrayList<LoggedUpdate> aborted = live.remove(logTid);
+                                if (aborted != null)
+                                    undo(aborted, offset, pages);
+                                tidToFirstLogRecord.remove(logTid);
+                                tidToLastLogRecord.remove(logTid);
+                                reader.skipBytes(LONG_SIZE);
                                 break;
                             case UPDATE_RECORD:
-                                readPageData(raf);
-                                Page afterImg = readPageData(raf);
-                                int tableid = afterImg.getId().getTableId();
-                                Database.getCatalog().getDatabaseFile(tableid).writePage(afterImg);
-                                raf.skipBytes(LONG_SIZE);
+                            case DELTA_RECORD:
+                                LoggedUpdate update = readUpdate(reader, logType);
+                                Long recLsn = recLsns.get(update.pid);
+                                if (redo || (recLsn != null && offset >= recLsn))
+                                    replay(update, true, offset, pages);
+                                ArrayList<LoggedUpdate> updates = live.get(logTid);
+                                if (updates != null)
+                                    updates.add(update);
+                                reader.skipBytes(LONG_SIZE);
+                                break;
+                            case CHECKPOINT_RECORD:
+                                skipCheckpoint(reader);
+                                reader.skipBytes(LONG_SIZE);
                                 break;
                             default:
-                                    break;
-                            }
-                        } catch (EOFException e){
-                            break;
+                                break;
                         }
+                    } catch (EOFException e) {
+                        break;
                     }
-                // undo
-                for(long logTid : transTable){
-                    logAbort(new TransactionId(logTid));
                 }
-                currentOffset = originalOffset;
+
+                // abort the transactions that never finished: their undo
+                // has the LSN of their ABORT record, which is forced before
+                // any page holding that LSN is written
+                currentOffset = position();
+                for (Map.Entry<Long, ArrayList<LoggedUpdate>> loser : live.entrySet()) {
+                    long tid = loser.getKey();
+                    long abortLsn = currentOffset;
+                    writeRecordHeader(ABORT_RECORD, tid);
+                    out.writeLong(currentOffset);
+                    currentOffset = position();
+                    tidToFirstLogRecord.remove(tid);
+                    tidToLastLogRecord.remove(tid);
+                    undo(loser.getValue(), abortLsn, pages);
+                }
+            }
+        }
+        // forced without the monitors, before any page is written
+        force();
+        synchronized (Database.getBufferPool()) {
+            List<PageId> written = installPages(pages.values());
+            for (PageId pid : written)
+                Database.getBufferPool().discardPage(pid);
+            synchronized (this) {
+                recoveryWrites = written.size();
+            }
+        }
+    }
+
+    /**
+     * The updates recovery redoes and undoes on one page, in log order.
+     * Each has an LSN: the LSN of its record when it is redone, the LSN of
+     * the ABORT record of its transaction when it is undone.
+     */
+    private class PageReplay {
+        final PageId pid;
+        PageCodecs.Codec codec;
+        final ArrayList<LoggedUpdate> updates = new ArrayList<>();
+        final ArrayList<Long> lsns = new ArrayList<>();
+        final BitSet redo = new BitSet(); // bit i set if updates[i] is redone
+
+        PageReplay(PageId pid) {
+            this.pid = pid;
+        }
+
+        void add(LoggedUpdate update, boolean redo, long lsn) {
+            // a full image replaces whatever came before it
+            if (update.delta == null && redo) {
+                updates.clear();
+                lsns.clear();
+            }
+            this.redo.set(updates.size(), redo);
+            updates.add(update);
+            lsns.add(lsn);
+            codec = update.codec;
+        }
+
+        /**
+         * Apply the updates past the page LSN of the page on disk, the page
+         * holds the others already, and write it back if any was applied.
+         * The page LSN of the image written is the LSN of the last update.
+         * @return true if the page was written
+         */
+        boolean install() throws IOException {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            Page disk = file.readPage(pid);
+            byte[] image = disk.getPageData();
+            long pageLsn = codec.getPageLsn(disk);
+            long applied = PageCodecs.NO_PAGE_LSN;
+            for (int i = 0; i < updates.size(); i++) {
+                // the undo of a transaction has one LSN for all its
+                // updates, so they are compared with the page on disk
+                if (lsns.get(i) <= pageLsn)
+                    continue;
+                image = updates.get(i).apply(image, redo.get(i));
+                applied = lsns.get(i);
             }
-         }
+            if (applied == PageCodecs.NO_PAGE_LSN)
+                return false;
+            Page page = codec.newPage(pid, image);
+            codec.setPageLsn(page, applied);
+            file.writePage(page);
+            return true;
+        }
+    }
+
+    /**
+     * queue the redo or undo of an update on its page
+     * @param lsn: the LSN the page holds once the update is replayed
+     */
+    private void replay(LoggedUpdate update, boolean redo, long lsn, HashMap<PageId, PageReplay> pages) {
+        PageReplay page = pages.get(update.pid);
+        if (page == null) {
+            page = new PageReplay(update.pid);
+            pages.put(update.pid, page);
+        }
+        page.add(update, redo, lsn);
+    }
+
+    /**
+     * undo the updates of a transaction, last first
+     * @param abortLsn: the LSN of the ABORT record of the transaction
+     */
+    private void undo(ArrayList<LoggedUpdate> updates, long abortLsn, HashMap<PageId, PageReplay> pages) {
+        for (int i = updates.size() - 1; i >= 0; i--)
+            replay(updates.get(i), false, abortLsn, pages);
+    }
+
+    /**
+     * Install the replayed pages with recoveryThreads threads, each
+     * writing a contiguous run of pages sorted by table and page number.
+     * @return the ids of the pages written
+     */
+    private List<PageId> installPages(Collection<PageReplay> replays) throws IOException {
+        ArrayList<PageReplay> sorted = new ArrayList<>(replays);
+        Collections.sort(sorted, new Comparator<PageReplay>() {
+            public int compare(PageReplay a, PageReplay b) {
+                if (a.pid.getTableId() != b.pid.getTableId())
+                    return Integer.compare(a.pid.getTableId(), b.pid.getTableId());
+                return Integer.compare(a.pid.getPageNumber(), b.pid.getPageNumber());
+            }
+        });
+        final List<PageId> written = Collections.synchronizedList(new ArrayList<PageId>());
+        if (sorted.isEmpty())
+            return written;
+        int numThreads = Math.max(1, Math.min(recoveryThreads, sorted.size()));
+        int runLength = (sorted.size() + numThreads - 1) / numThreads;
+        ArrayList<Callable<Void>> runs = new ArrayList<>();
+        for (int start = 0; start < sorted.size(); start += runLength) {
+            final List<PageReplay> run = sorted.subList(start, Math.min(sorted.size(), start + runLength));
+            runs.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    for (PageReplay page : run) {
+                        if (page.install())
+                            written.add(page.pid);
+                    }
+                    return null;
+                }
+            });
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (Future<Void> run : workers.invokeAll(runs))
+                run.get();
+        } catch (InterruptedException e) {
+            throw new IOException("recovery interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("recovery failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        return written;
+    }
+
+    /**
+     * Set the number of threads that replay pages during recovery.
+     * @param numThreads: at least 1
+     */
+    public synchronized void setRecoveryThreads(int numThreads) {
+        recoveryThreads = Math.max(1, numThreads);
+    }
+
+    /** @return the number of pages the last recovery wrote */
+    public synchronized int getRecoveryWrites() {
+        return recoveryWrites;
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
-//        long curOffset = raf.getFilePointer();
-        raf.seek(0);
-        System.out.println("checkpoint: " + raf.readLong());
+//        long curOffset = reader.getFilePointer();
+        flushBuffer();
+        System.out.println("checkpoint: " + segments.getCheckpoint());
+        reader.seek(segments.getStart());
 //        System.out.println("checkpoint record at offset: " + curOffset);
         while (true){
             try{
-                int cptType = raf.readInt();
-                long cptTid = raf.readLong();
+                int cptType = reader.readInt();
+                long cptTid = reader.readLong();
+                reader.readLong(); // prev-LSN
                 switch (cptType){
                     case BEGIN_RECORD:
-                        System.out.println("BEGIN tid: " + cptTid + " start offset: " + raf.readLong());
+                        System.out.println("BEGIN tid: " + cptTid + " start offset: " + reader.readLong());
                         break;
                     case ABORT_RECORD:
-                        System.out.println("Abort tid: " + cptTid + " start offset: " + raf.readLong());
+                        System.out.println("Abort tid: " + cptTid + " start offset: " + reader.readLong());
                         break;
                     case COMMIT_RECORD:
-                        System.out.println("Commit tid: " + cptTid + " start offset: " + raf.readLong());
+                        System.out.println("Commit tid: " + cptTid + " start offset: " + reader.readLong());
                         break;
                     case CHECKPOINT_RECORD:
                         System.out.println("CheckPoint ");
-                        int numXactions = raf.readInt();
+                        int numXactions = reader.readInt();
                         System.out.println("number of transactions: " + numXactions);
                         while(numXactions-- > 0){
-                            System.out.println("tid: " + raf.readLong() + " offset: " +raf.readLong());
+                            System.out.println("tid: " + reader.readLong() + " offset: " +reader.readLong());
                         }
-                        System.out.println("start offset: " + raf.readLong());
+                        int numDirty = reader.readInt();
+                        System.out.println("number of dirty pages: " + numDirty);
+                        while(numDirty-- > 0){
+                            System.out.println("page: " + readPageId(reader) + " offset: " + reader.readLong());
+                        }
+                        System.out.println("start offset: " + reader.readLong());
                         break;
                     case UPDATE_RECORD:
                         System.out.println("UPDATE");
-//                        long startOffset = raf.readLong();
-                        Page before = readPageData(raf);
+//                        long startOffset = reader.readLong();
+                        Page before = readPageData(reader);
 
-//                        long afterOffset = raf.readLong();
-                        Page after = readPageData(raf);
+//                        long afterOffset = reader.readLong();
+                        Page after = readPageData(reader);
 
                         System.out.println("tid : " + cptTid +  " before image table id " + before.getId().getTableId());
                         System.out.println("before image page number: " + before.getId().getPageNumber());
 //                        System.out.println((startOffset + INT_SIZE) + " to " + (afterOffset - INT_SIZE) + " page data");
-                        System.out.println("start offset: " + raf.readLong());
+                        System.out.println("start offset: " + reader.readLong());
 
                         break;
+                    case DELTA_RECORD:
+                        LoggedUpdate delta = readDeltaData(reader);
+                        System.out.println("DELTA");
+                        System.out.println("tid : " + cptTid + " table id " + delta.pid.getTableId()
+                                + " page number: " + delta.pid.getPageNumber()
+                                + " ranges: " + delta.delta.getNumRanges());
+                        System.out.println("start offset: " + reader.readLong());
+                        break;
 
                 }
             } catch (EOFException e){
@@ -659,11 +1446,57 @@ public class LogFile {
                 break;
             }
         }
-        raf.seek(currentOffset);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force the log to disk up to its current end.
+        The buffer is flushed under the monitor, the segments are synced
+        outside it so that records are appended meanwhile. Forces sync
+        one at a time: each one syncs every segment written before it
+        started, also for the forces queued behind it. Must not be called
+        under the monitor: abort, checkpoint and recovery append their
+        records under it and force after releasing it.
+    */
+    public void force() throws IOException {
+        // appenders would wait for the whole sync
+        assert !Thread.holdsLock(this) : "log forced under the LogFile monitor";
+        long lsn;
+        synchronized (this) {
+            flushBuffer();
+            lsn = getFlushedLsn();
+        }
+        boolean interrupted = false;
+        synchronized (forceLock) {
+            while (syncing) {
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            syncing = true;
+        }
+        boolean synced = false;
+        try {
+            List<Long> segs = segments.takeUnforced();
+            try {
+                segments.force(segs);
+                synced = true;
+            } finally {
+                if (!synced)
+                    segments.restoreUnforced(segs);
+            }
+        } finally {
+            synchronized (forceLock) {
+                syncing = false;
+                if (synced) {
+                    durableLsn = Math.max(durableLsn, lsn);
+                    forces++;
+                }
+                forceLock.notifyAll();
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
     }
 
 }
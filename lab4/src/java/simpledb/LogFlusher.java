@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * LogFlusher is a background thread that forces a LogFile to disk at a
+ * fixed interval, whenever records were appended since the last force.
+ * <p>
+ * It bounds how much an asynchronous commit can lose: a transaction that
+ * commits asynchronously returns once its COMMIT record is in the log
+ * buffer, and the record reaches the disk with the next force, at most one
+ * interval later unless another force comes first. A crash in between
+ * loses the commit, and recovery rolls the transaction back as if it never
+ * committed; the pages it wrote are still protected by write ahead logging.
+ *
+ * @see LogFile#logCommit(TransactionId, boolean)
+ */
+public class LogFlusher extends Thread {
+    private final LogFile log;
+    private final long intervalMillis;
+    private volatile boolean running;
+    private volatile int flushes;
+
+    /**
+     * @param log the log to force
+     * @param intervalMillis time between two forces
+     */
+    public LogFlusher(LogFile log, long intervalMillis) {
+        super("LogFlusher");
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("log flush interval must be positive");
+        this.log = log;
+        this.intervalMillis = intervalMillis;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    /** @return the time between two forces, in milliseconds */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /** Stop forcing the log. */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    /**
+     * @return the number of times this flusher forced the log
+     */
+    public int getFlushes() {
+        return flushes;
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (!running || log.getDurableLsn() >= log.getCurrentLsn())
+                continue;
+            try {
+                log.force();
+                flushes++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
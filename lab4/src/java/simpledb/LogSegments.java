@@ -0,0 +1,291 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LogSegments stores the bytes of a LogFile in fixed-size segment files,
+ * addressed by LSN: segment n holds the LSNs from n * segmentSize up to
+ * (n + 1) * segmentSize, in the file named after the log followed by
+ * ".n". Records may span two segments.
+ * <p>
+ * The log file itself is a small control file holding the segment size,
+ * the first LSN still needed, the LSN of the last checkpoint and the log
+ * id. The id is drawn at random whenever a new log starts, a missing or
+ * unreadable control file included; page LSNs are only compared with the
+ * LSNs of the log that wrote them, see {@link #getLogId}. Truncating
+ * the log only moves the first LSN and deletes the segments entirely before
+ * it, no record is copied. The end of the log is found on startup from the
+ * length of its last segment, which is why dropped segments are deleted
+ * rather than renamed for reuse: a recycled segment would hold stale
+ * records past the end.
+ * <p>
+ * Not thread safe, the LogFile calls it under its monitor. The exceptions
+ * are takeUnforced, restoreUnforced and {@link #force(List)}, which force
+ * segments without the monitor, so that records are appended while the
+ * disk syncs; segments are not closed while a force runs.
+ */
+public class LogSegments {
+    /** First int of a control file, anything else is not a segmented log. */
+    private static final int MAGIC = 0x53444c32;
+    private static final int HEADER_SIZE = 4 + 4 * 8;
+    private static final Random ids = new Random();
+
+    private final File control;
+    private final RandomAccessFile controlFile;
+    private final long defaultSegmentSize;
+    private long segmentSize;
+    private long start; // first LSN kept
+    private long end; // LSN after the last byte written
+    private long checkpoint; // LSN of the last checkpoint record
+    private volatile long logId; // read without the monitor by HeapFile
+    private final ConcurrentHashMap<Long, RandomAccessFile> open = new ConcurrentHashMap<>();
+    private final Set<Long> unforced = ConcurrentHashMap.newKeySet(); // segments written since the last force
+    // read locked while segments are forced, write locked while they are closed
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private int segmentsDropped = 0;
+
+    /**
+     * Open the segmented log controlled by a file, or start an empty one if
+     * the file does not hold a control header.
+     *
+     * @param control the control file of the log
+     * @param segmentSize size of the segments of a new log
+     */
+    public LogSegments(File control, long segmentSize) throws IOException {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("segment size must be positive");
+        this.control = control;
+        this.controlFile = new RandomAccessFile(control, "rw");
+        this.defaultSegmentSize = segmentSize;
+        if (controlFile.length() >= HEADER_SIZE && controlFile.readInt() == MAGIC) {
+            this.segmentSize = controlFile.readLong();
+            start = controlFile.readLong();
+            checkpoint = controlFile.readLong();
+            logId = controlFile.readLong();
+            end = start;
+            for (long seg = segmentOf(start); segmentFile(seg).exists(); seg++)
+                end = seg * this.segmentSize + segmentFile(seg).length();
+        } else {
+            this.segmentSize = segmentSize;
+            start = end = 0;
+            checkpoint = LogFile.NO_CHECKPOINT_ID;
+            logId = ids.nextLong();
+            writeHeader();
+        }
+    }
+
+    /**
+     * @param seg: a segment number
+     * @return the file of that segment
+     */
+    public File segmentFile(long seg) {
+        return new File(control.getPath() + "." + seg);
+    }
+
+    private long segmentOf(long lsn) {
+        return lsn / segmentSize;
+    }
+
+    private RandomAccessFile segment(long seg) throws IOException {
+        RandomAccessFile file = open.get(seg);
+        if (file == null) {
+            file = new RandomAccessFile(segmentFile(seg), "rw");
+            open.put(seg, file);
+        }
+        return file;
+    }
+
+    private void writeHeader() throws IOException {
+        controlFile.seek(0);
+        controlFile.writeInt(MAGIC);
+        controlFile.writeLong(segmentSize);
+        controlFile.writeLong(start);
+        controlFile.writeLong(checkpoint);
+        controlFile.writeLong(logId);
+        controlFile.getChannel().force(true);
+    }
+
+    /**
+     * Delete every segment and start an empty log, with the default segment
+     * size and a new log id.
+     */
+    public void reset() throws IOException {
+        for (long seg = segmentOf(start); seg <= segmentOf(end); seg++)
+            drop(seg);
+        segmentSize = defaultSegmentSize;
+        start = end = 0;
+        logId = ids.nextLong();
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        writeHeader();
+    }
+
+    /**
+     * @return the id of this log: a page LSN stamped under another id was
+     *   written by an older log, and does not tell which records of this
+     *   one the page holds
+     */
+    public long getLogId() {
+        return logId;
+    }
+
+    /** @return the first LSN of the log */
+    public long getStart() {
+        return start;
+    }
+
+    /** @return the LSN after the last byte of the log */
+    public long getEnd() {
+        return end;
+    }
+
+    /** @return the LSN of the last checkpoint record, or NO_CHECKPOINT_ID */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Record the LSN of the last checkpoint in the control file, and force it.
+     * @param lsn: LSN of a checkpoint record that is on disk
+     */
+    public void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeHeader();
+    }
+
+    /** @return the size of the segments */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the number of segments deleted by truncate */
+    public int getSegmentsDropped() {
+        return segmentsDropped;
+    }
+
+    /**
+     * Append the remaining bytes of a buffer at the end of the log, without
+     * forcing them.
+     * @param buf: the bytes to append
+     */
+    public void append(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            long seg = segmentOf(end);
+            long offset = end - seg * segmentSize;
+            int n = (int) Math.min(buf.remaining(), segmentSize - offset);
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + n);
+            int written = segment(seg).getChannel().write(part, offset);
+            buf.position(buf.position() + written);
+            end += written;
+            unforced.add(seg);
+        }
+    }
+
+    /**
+     * Read bytes of the log.
+     * @param lsn: LSN of the first byte to read
+     * @return the number of bytes read, at most len, or -1 at the end of the log
+     */
+    public int read(long lsn, byte[] b, int off, int len) throws IOException {
+        if (lsn < start)
+            throw new IOException("LSN " + lsn + " was truncated, the log starts at " + start);
+        if (lsn >= end)
+            return -1;
+        long seg = segmentOf(lsn);
+        long offset = lsn - seg * segmentSize;
+        int n = (int) Math.min(len, Math.min(end - lsn, segmentSize - offset));
+        return segment(seg).getChannel().read(ByteBuffer.wrap(b, off, n), offset);
+    }
+
+    /**
+     * Take the segments written since the last force, the caller forces them
+     * with force(List).
+     * @return the numbers of these segments
+     */
+    public List<Long> takeUnforced() {
+        ArrayList<Long> segs = new ArrayList<>();
+        for (Iterator<Long> iter = unforced.iterator(); iter.hasNext(); ) {
+            segs.add(iter.next());
+            iter.remove();
+        }
+        return segs;
+    }
+
+    /**
+     * Give back segments taken by takeUnforced that could not be forced.
+     * @param segs: segment numbers
+     */
+    public void restoreUnforced(List<Long> segs) {
+        for (long seg : segs) {
+            if (open.containsKey(seg))
+                unforced.add(seg);
+        }
+    }
+
+    /**
+     * Force segments to disk. Safe to call while other threads append to the
+     * log; segments truncated in the meantime are skipped.
+     * @param segs: segment numbers taken by takeUnforced
+     */
+    public void force(List<Long> segs) throws IOException {
+        closeLock.readLock().lock();
+        try {
+            for (long seg : segs) {
+                RandomAccessFile file = open.get(seg);
+                if (file != null)
+                    file.getChannel().force(true);
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drop the start of the log: the control file records the new start,
+     * then the segments entirely before it are deleted.
+     * @param lsn: the first LSN still needed
+     */
+    public void truncate(long lsn) throws IOException {
+        if (lsn <= start)
+            return;
+        long first = segmentOf(start);
+        start = Math.min(lsn, end);
+        writeHeader();
+        for (long seg = first; seg < segmentOf(start); seg++) {
+            drop(seg);
+            segmentsDropped++;
+        }
+    }
+
+    private void drop(long seg) throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            RandomAccessFile file = open.remove(seg);
+            if (file != null)
+                file.close();
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        unforced.remove(seg);
+        segmentFile(seg).delete();
+    }
+
+    /**
+     * Close the control file and the segments.
+     */
+    public void close() throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            for (RandomAccessFile file : open.values())
+                file.close();
+            open.clear();
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        controlFile.close();
+    }
+}
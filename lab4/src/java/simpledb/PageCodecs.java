@@ -0,0 +1,244 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PageCodecs is the registry of the codecs the log uses to write and read
+ * back pages and page ids. A codec is registered under a small integer tag,
+ * written as a single byte in front of the page id, and builds pages and
+ * page ids directly, without reflection.
+ * <p>
+ * Page classes without a codec are still logged, with tag REFLECTIVE
+ * followed by their class names, and are read back by reflection as the
+ * log always did: their PageId class needs a constructor taking the
+ * integers of serialize(), their Page class one taking the id and the data.
+ *
+ * @Threadsafe
+ */
+public class PageCodecs {
+    /** Tag of the pages and page ids written with their class names. */
+    public static final int REFLECTIVE = 0;
+    /** Tag of HeapPage and HeapPageId. */
+    public static final int HEAP_PAGE = 1;
+    /** Page LSN of the pages that keep none. */
+    public static final long NO_PAGE_LSN = -1;
+    private static final int MAX_TAG = 255;
+
+    /**
+     * Codec serializes the page ids of one page class and builds its pages.
+     */
+    public static abstract class Codec {
+        private int tag = REFLECTIVE;
+
+        /** @return the tag this codec is registered under */
+        public int getTag() {
+            return tag;
+        }
+
+        /** Write the fields of a page id of this codec. */
+        public abstract void writePageId(DataOutput out, PageId pid) throws IOException;
+
+        /** Read back a page id written by writePageId. */
+        public abstract PageId readPageId(DataInput in) throws IOException;
+
+        /**
+         * @param pid: the id of the page
+         * @param data: the page image, as returned by getPageData
+         * @return the page
+         */
+        public abstract Page newPage(PageId pid, byte[] data) throws IOException;
+
+        /**
+         * @param page: a page of this codec
+         * @return the LSN of the last logged update the page holds, or
+         *   NO_PAGE_LSN if its pages keep no LSN and every record is redone
+         */
+        public long getPageLsn(Page page) {
+            return NO_PAGE_LSN;
+        }
+
+        /** Set the page LSN of a page before it is written, if it keeps one. */
+        public void setPageLsn(Page page, long lsn) {
+        }
+    }
+
+    private static class HeapPageCodec extends Codec {
+        public void writePageId(DataOutput out, PageId pid) throws IOException {
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.getPageNumber());
+        }
+
+        public PageId readPageId(DataInput in) throws IOException {
+            int tableId = in.readInt();
+            return new HeapPageId(tableId, in.readInt());
+        }
+
+        public Page newPage(PageId pid, byte[] data) throws IOException {
+            return new HeapPage((HeapPageId) pid, data);
+        }
+
+        public long getPageLsn(Page page) {
+            return ((HeapPage) page).getLsn();
+        }
+
+        public void setPageLsn(Page page, long lsn) {
+            ((HeapPage) page).setLsn(lsn);
+        }
+    }
+
+    /** the codec of a page class that was not registered */
+    private static class ReflectiveCodec extends Codec {
+        private final String pageClassName;
+
+        ReflectiveCodec(String pageClassName) {
+            this.pageClassName = pageClassName;
+        }
+
+        public void writePageId(DataOutput out, PageId pid) throws IOException {
+            writeReflectivePageId(out, pid);
+        }
+
+        public PageId readPageId(DataInput in) throws IOException {
+            return readReflectivePageId(in);
+        }
+
+        public Page newPage(PageId pid, byte[] data) throws IOException {
+            return (Page) construct(pageClassName, new Object[] { pid, data });
+        }
+    }
+
+    private static final Codec[] codecs = new Codec[MAX_TAG + 1];
+    private static final ConcurrentHashMap<Class<?>, Codec> pageCodecs = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Class<?>, Codec> idCodecs = new ConcurrentHashMap<>();
+    // one reflective codec per unregistered page class, by class name
+    private static final ConcurrentHashMap<String, Codec> reflectiveCodecs = new ConcurrentHashMap<>();
+
+    static {
+        register(HEAP_PAGE, HeapPage.class, HeapPageId.class, new HeapPageCodec());
+    }
+
+    /**
+     * Register the codec of a page class. The tag is written in the log,
+     * so a page class must keep its tag for its log to be recovered.
+     *
+     * @param tag: tag of the codec, between 1 and 255
+     * @param pageClass: the page class the codec builds
+     * @param idClass: the page id class the codec serializes
+     * @param codec: the codec
+     * @throws IllegalArgumentException if the tag or the classes are taken
+     */
+    public static synchronized void register(int tag, Class<? extends Page> pageClass,
+                                             Class<? extends PageId> idClass, Codec codec) {
+        if (tag <= REFLECTIVE || tag > MAX_TAG)
+            throw new IllegalArgumentException("codec tag " + tag + " out of range");
+        if (codecs[tag] != null || pageCodecs.containsKey(pageClass) || idCodecs.containsKey(idClass))
+            throw new IllegalArgumentException("codec tag " + tag + " or its classes are registered already");
+        codec.tag = tag;
+        codecs[tag] = codec;
+        pageCodecs.put(pageClass, codec);
+        idCodecs.put(idClass, codec);
+    }
+
+    /**
+     * @param page: a page to log
+     * @return the codec of its class, a shared reflective one if none was
+     *   registered
+     */
+    public static Codec codecOf(Page page) {
+        Codec codec = pageCodecs.get(page.getClass());
+        return codec != null ? codec : reflectiveCodec(page.getClass().getName());
+    }
+
+    private static Codec reflectiveCodec(String pageClassName) {
+        return reflectiveCodecs.computeIfAbsent(pageClassName, ReflectiveCodec::new);
+    }
+
+    /**
+     * Write the tag of a codec and a page id of that codec.
+     */
+    public static void writeHeader(DataOutput out, Codec codec, PageId pid) throws IOException {
+        out.writeByte(codec.getTag());
+        if (codec.getTag() == REFLECTIVE)
+            out.writeUTF(((ReflectiveCodec) codec).pageClassName);
+        codec.writePageId(out, pid);
+    }
+
+    /**
+     * Read the codec tag written by writeHeader, the page id follows.
+     * @return the codec of the tag
+     */
+    public static Codec readHeader(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        if (tag == REFLECTIVE)
+            return reflectiveCodec(in.readUTF());
+        return registered(tag);
+    }
+
+    /**
+     * Write a page id, with the tag of the codec of its class.
+     */
+    public static void writePageId(DataOutput out, PageId pid) throws IOException {
+        Codec codec = idCodecs.get(pid.getClass());
+        if (codec == null) {
+            out.writeByte(REFLECTIVE);
+            writeReflectivePageId(out, pid);
+        } else {
+            out.writeByte(codec.getTag());
+            codec.writePageId(out, pid);
+        }
+    }
+
+    /**
+     * Read back a page id written by writePageId.
+     */
+    public static PageId readPageId(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        if (tag == REFLECTIVE)
+            return readReflectivePageId(in);
+        return registered(tag).readPageId(in);
+    }
+
+    private static Codec registered(int tag) throws IOException {
+        Codec codec = codecs[tag];
+        if (codec == null)
+            throw new IOException("no page codec registered for tag " + tag);
+        return codec;
+    }
+
+    private static void writeReflectivePageId(DataOutput out, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+    }
+
+    private static PageId readReflectivePageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = Integer.valueOf(in.readInt());
+        }
+        return (PageId) construct(idClassName, idArgs);
+    }
+
+    /** build an instance of a class with its first declared constructor */
+    private static Object construct(String className, Object[] args) throws IOException {
+        try {
+            Constructor<?>[] consts = Class.forName(className).getDeclaredConstructors();
+            return consts[0].newInstance(args);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } catch (InstantiationException e) {
+            throw new IOException(e);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            throw new IOException(e);
+        }
+    }
+}
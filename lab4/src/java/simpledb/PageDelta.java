@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PageDelta holds the byte ranges in which two images of a page differ,
+ * with the bytes of both images, so that it can redo or undo the change
+ * on the other image.
+ * <p>
+ * Inserting or deleting a tuple of a HeapPage changes a bit of the header
+ * and the bytes of a slot, so the delta of such an update is a few ranges
+ * of tuple size instead of the two full pages of an image record. Ranges
+ * closer than MERGE_GAP bytes are merged, since each range costs 8 bytes.
+ * <p>
+ * Redo and undo only set the bits that differ between the two images.
+ * Transactions that change different slots of a page at once share the
+ * header bytes, but not the bits, so their deltas can be redone and undone
+ * independently of each other.
+ */
+public class PageDelta {
+    /** Ranges separated by fewer bytes than this are merged. */
+    private static final int MERGE_GAP = 8;
+
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @param beforeData the image of the page before the change
+     * @param afterData the image of the page after the change, of the same size
+     * @return the ranges the images differ in
+     */
+    public static PageDelta diff(byte[] beforeData, byte[] afterData) {
+        if (beforeData.length != afterData.length)
+            throw new IllegalArgumentException("page images of different sizes");
+        ArrayList<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < afterData.length) {
+            if (beforeData[i] == afterData[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1; // exclusive
+            // extend over equal runs shorter than the gap
+            for (int j = end; j < afterData.length && j < end + MERGE_GAP; j++) {
+                if (beforeData[j] != afterData[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0], end = ranges.get(r)[1];
+            offsets[r] = start;
+            before[r] = Arrays.copyOfRange(beforeData, start, end);
+            after[r] = Arrays.copyOfRange(afterData, start, end);
+        }
+        return new PageDelta(beforeData.length, offsets, before, after);
+    }
+
+    /** @return the number of changed ranges */
+    public int getNumRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes write() produces */
+    public int getSerializedSize() {
+        int size = 2 * Integer.BYTES;
+        for (byte[] range : after)
+            size += 2 * Integer.BYTES + 2 * range.length;
+        return size;
+    }
+
+    /**
+     * Set the changed bits of a page image to the after image.
+     * @param data the page image to change
+     */
+    public void redo(byte[] data) {
+        apply(data, after);
+    }
+
+    /**
+     * Set the changed bits of a page image back to the before image.
+     * @param data the page image to change
+     */
+    public void undo(byte[] data) {
+        apply(data, before);
+    }
+
+    private void apply(byte[] data, byte[][] images) {
+        if (data.length != pageSize)
+            throw new IllegalArgumentException("delta of a page of " + pageSize + " bytes");
+        for (int r = 0; r < offsets.length; r++)
+            applyMasked(data, offsets[r], images[r], before[r], after[r]);
+    }
+
+    /**
+     * Copy the bits in which two images differ from one of them into data.
+     * @param data the page image to change
+     * @param offset the position of the images in data
+     * @param image before or after, the image to copy
+     */
+    static void applyMasked(byte[] data, int offset, byte[] image, byte[] before, byte[] after) {
+        for (int i = 0; i < image.length; i++) {
+            int changed = before[i] ^ after[i];
+            data[offset + i] ^= (data[offset + i] ^ image[i]) & changed;
+        }
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    public static PageDelta read(DataInput in) throws IOException {
+        int pageSize = in.readInt();
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            after[r] = new byte[length];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pageSize, offsets, before, after);
+    }
+}
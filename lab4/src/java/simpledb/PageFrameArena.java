@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * PageFrameArena is a pre-allocated region of off-heap memory (direct
+ * ByteBuffers) that is divided into fixed size page frames. The BufferPool
+ * uses it to hold the page images of resident pages outside of the Java
+ * heap, so that a large pool does not turn into a large amount of garbage
+ * collected memory.
+ * <p>
+ * A single direct buffer cannot be larger than 2GB, so the arena is made of
+ * several chunks, each of them holding at most framesPerChunk frames. The
+ * arena can grow by adding chunks and shrink by dropping trailing chunks
+ * once all of their frames have been given back.
+ *
+ * @Threadsafe
+ */
+public class PageFrameArena {
+    /** Upper bound on the bytes allocated by a single direct buffer. */
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int frameSize;
+    private final int framesPerChunk;
+    private final ArrayList<ByteBuffer> chunks;
+    private final ArrayList<Integer> chunkFramesInUse; // frames handed out, per chunk
+    private final TreeSet<Integer> freeFrames; // lowest first, so trailing chunks drain
+    private int capacity; // number of frames that may be handed out
+    private int framesInUse;
+
+    /**
+     * Creates an arena that holds as many frames as fit in budgetBytes.
+     *
+     * @param budgetBytes number of bytes to pre-allocate off-heap
+     * @param frameSize size of a single frame, normally the page size
+     */
+    public PageFrameArena(long budgetBytes, int frameSize) {
+        if (frameSize <= 0)
+            throw new IllegalArgumentException("frame size must be positive");
+        if (budgetBytes / frameSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("memory budget is too large for " + frameSize + " byte frames");
+        this.frameSize = frameSize;
+        this.framesPerChunk = Math.max(1, MAX_CHUNK_BYTES / frameSize);
+        this.chunks = new ArrayList<>();
+        this.chunkFramesInUse = new ArrayList<>();
+        this.freeFrames = new TreeSet<>();
+        this.capacity = 0;
+        this.framesInUse = 0;
+        setCapacity((int) (budgetBytes / frameSize));
+    }
+
+    /**
+     * @return the number of frames held by the allocated chunks
+     */
+    private int reservedFrames() {
+        int frames = 0;
+        for (ByteBuffer chunk : chunks) {
+            frames += chunk.capacity() / frameSize;
+        }
+        return frames;
+    }
+
+    /**
+     * Change the number of frames of this arena. Growing allocates new
+     * chunks; shrinking drops trailing chunks as soon as none of their
+     * frames are in use, frames that are still in use are dropped when
+     * they are released.
+     *
+     * @param frames: the new number of frames
+     */
+    public synchronized void setCapacity(int frames) {
+        if (frames < 0)
+            throw new IllegalArgumentException("capacity cannot be negative");
+        capacity = frames;
+        int missing = capacity - reservedFrames();
+        while (missing > 0) {
+            int inChunk = Math.min(missing, framesPerChunk);
+            int first = chunks.size() * framesPerChunk;
+            chunks.add(ByteBuffer.allocateDirect(inChunk * frameSize));
+            chunkFramesInUse.add(0);
+            for (int i = 0; i < inChunk; i++) {
+                freeFrames.add(first + i);
+            }
+            missing -= inChunk;
+        }
+        trim();
+    }
+
+    /**
+     * drop trailing chunks that are entirely free and not needed to
+     * provide capacity frames
+     */
+    private void trim() {
+        int reserved = reservedFrames();
+        while (!chunks.isEmpty()) {
+            int last = chunks.size() - 1;
+            int inChunk = chunks.get(last).capacity() / frameSize;
+            if (chunkFramesInUse.get(last) > 0 || reserved - inChunk < capacity)
+                break;
+            int first = last * framesPerChunk;
+            freeFrames.subSet(first, first + inChunk).clear();
+            chunks.remove(last);
+            chunkFramesInUse.remove(last);
+            reserved -= inChunk;
+        }
+    }
+
+    /**
+     * Take a free frame out of the arena.
+     * @return the index of the frame, or -1 if every frame is in use
+     */
+    public synchronized int allocate() {
+        if (framesInUse >= capacity || freeFrames.isEmpty())
+            return -1;
+        int frame = freeFrames.pollFirst();
+        int chunk = frame / framesPerChunk;
+        chunkFramesInUse.set(chunk, chunkFramesInUse.get(chunk) + 1);
+        framesInUse++;
+        return frame;
+    }
+
+    /**
+     * Give a frame back to the arena so it can be reused by another page.
+     * @param frame: index returned by {@link #allocate()}
+     */
+    public synchronized void release(int frame) {
+        int chunk = frame / framesPerChunk;
+        if (frame < 0 || chunk >= chunks.size() || freeFrames.contains(frame))
+            throw new IllegalArgumentException("no such frame in use " + frame);
+        chunkFramesInUse.set(chunk, chunkFramesInUse.get(chunk) - 1);
+        framesInUse--;
+        freeFrames.add(frame);
+        trim();
+    }
+
+    /**
+     * Return a view over the given frame. The view has its own position and
+     * limit and covers exactly frameSize bytes of the arena.
+     * @param frame: index returned by {@link #allocate()}
+     */
+    public ByteBuffer frame(int frame) {
+        ByteBuffer chunk;
+        synchronized (this) {
+            chunk = chunks.get(frame / framesPerChunk);
+        }
+        ByteBuffer view = chunk.duplicate();
+        int offset = (frame % framesPerChunk) * frameSize;
+        view.limit(offset + frameSize);
+        view.position(offset);
+        return view.slice();
+    }
+
+    /** @return the size in bytes of one frame */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** @return the number of frames that may be handed out */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of frames currently handed out */
+    public synchronized int getFramesInUse() {
+        return framesInUse;
+    }
+
+    /** @return the number of off-heap bytes the arena may hand out */
+    public synchronized long getBudgetBytes() {
+        return (long) capacity * frameSize;
+    }
+
+    /** @return the number of off-heap bytes currently allocated by the arena */
+    public synchronized long getReservedBytes() {
+        return (long) reservedFrames() * frameSize;
+    }
+}
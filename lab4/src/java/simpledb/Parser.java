@@ -492,7 +492,32 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * Handle the SHOW commands of the console, which are not SQL and so are
+     * not understood by ZQL.
+     *
+     * @param cmd: the statement, terminated by a semicolon
+     * @return true if the statement was a SHOW command
+     */
+    public boolean processShowStatement(String cmd) {
+        if (!cmd.endsWith(";"))
+            return false;
+        String[] words = cmd.substring(0, cmd.length() - 1).trim().split("\\s+");
+        if (words.length != 2 || !words[0].equalsIgnoreCase("show"))
+            return false;
+        if (words[1].equalsIgnoreCase("bufferpool")) {
+            System.out.print(new BufferPoolMonitor().report());
+        } else if (words[1].equalsIgnoreCase("locks")) {
+            System.out.print(new LockManagerMonitor().report());
+        } else {
+            System.out.println("Unknown SHOW command: " + words[1]);
+        }
+        return true;
+    }
+
     public void processNextStatement(String s) {
+        if (processShowStatement(s.trim()))
+            return;
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
@@ -599,14 +624,23 @@ public class Parser {
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        try {
+            Database.getBufferPool().saveResidentPages(Database.getHotPagesFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         System.out.println("Bye");
     }
 
+    /** Number of threads reading pages when warming up the buffer pool */
+    static final int WARMUP_THREADS = 4;
+
     protected boolean interactive = true;
 
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
+        Database.getBufferPool().warmUp(Database.getHotPagesFile(), WARMUP_THREADS);
         TableStats.computeStatistics();
 
         String queryFile = null;
@@ -681,6 +715,11 @@ public class Parser {
                         quit = true;
                         break;
                     }
+                    if (processShowStatement(cmd)) {
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
 
                     long startTime = System.currentTimeMillis();
                     processNextStatement(new ByteArrayInputStream(
@@ -85,6 +85,10 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        // only an intention lock on the table: records are locked S as they
+        // are read, under IS on their page, so writers of other records go
+        // on, and deleting a record read earlier upgrades that record alone
+        Database.getBufferPool().lockTable(tid, tableid, LockMode.IS);
         // initialize the DbFileIterator
         itt = file.iterator(tid);
         itt.open();
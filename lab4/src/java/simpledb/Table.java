@@ -4,6 +4,7 @@ public class Table {
     private String name;
     private String pkeyField;
     private DbFile file;
+    private volatile boolean readOnly;
 
     public Table(DbFile file, String name, String pkeyField) {
         this.file = file;
@@ -13,4 +14,6 @@ public class Table {
     public DbFile getFile() { return this.file; }
     public String getName() { return this.name; }
     public String getPkeyField() { return this.pkeyField; }
+    public boolean isReadOnly() { return this.readOnly; }
+    public void setReadOnly(boolean readOnly) { this.readOnly = readOnly; }
 }
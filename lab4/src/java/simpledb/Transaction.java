@@ -9,15 +9,79 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
+    private boolean optimistic;
+    private boolean asyncCommit;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly: true for a transaction that only reads, it reads a
+     *   snapshot of the database and takes no locks
+     * @see BufferPool#beginSnapshot
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
+        optimistic = Database.getBufferPool().isOptimisticDefault();
+        asyncCommit = Database.getLogFile().isAsyncCommitDefault();
+    }
+
+    /**
+     * Create a transaction that restarts an aborted one, it keeps the age
+     * of the aborted transaction.
+     * @param aborted: the transaction to restart
+     */
+    public Transaction(Transaction aborted) {
+        tid = new TransactionId(aborted.getId());
+        readOnly = aborted.readOnly;
+        optimistic = aborted.optimistic;
+        asyncCommit = aborted.asyncCommit;
+    }
+
+    /**
+     * Choose whether this transaction runs optimistically instead of
+     * locking, must be called before start. Read-only transactions read
+     * a snapshot either way.
+     * @see BufferPool#beginOptimistic
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
     }
 
-    /** Start the transaction running */
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * Choose whether commit returns before the commit record is on disk.
+     * An asynchronous commit is forced within the flush interval of the
+     * log, a crash before that rolls the transaction back.  Enabling it
+     * starts the LogFlusher of the log.
+     * @see LogFile#logCommit(TransactionId, boolean)
+     */
+    public void setAsyncCommit(boolean asyncCommit) {
+        this.asyncCommit = asyncCommit;
+        if (asyncCommit)
+            Database.getLogFile().enableLogFlusher();
+    }
+
+    public boolean isAsyncCommit() {
+        return asyncCommit;
+    }
+
+    /** Start the transaction running, once the admission controller lets it */
     public void start() {
+        if (!readOnly)
+            Database.getAdmissionController().admit(tid);
         started = true;
+        if (readOnly)
+            Database.getBufferPool().beginSnapshot(tid);
+        else if (optimistic)
+            Database.getBufferPool().beginOptimistic(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,8 +93,25 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Finish the transaction
+     * @throws TransactionAbortedException if the transaction runs
+     *   optimistically and fails validation, it is aborted then
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                // the ABORT record is written before the locks are released
+                transactionComplete(true);
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
@@ -48,16 +129,20 @@ public class Transaction {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
-            // Release locks and flush pages if needed
             try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+                // Release locks and flush pages if needed
+                try {
+                    Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                // write commit log record
+                if (!abort) {
+                    Database.getLogFile().logCommit(tid, asyncCommit);
+                }
+            } finally {
+                Database.getAdmissionController().release(tid, abort);
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
@@ -12,18 +12,48 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final long timestamp; // age of the transaction, kept across restarts
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        timestamp = myid;
     }
     public TransactionId(long tid){
     	myid = tid;
+    	timestamp = tid;
 	}
 
+    /**
+     * Create the id of a transaction that restarts an aborted one. The new
+     * id is distinct, but keeps the timestamp of the aborted transaction,
+     * so the restarted transaction keeps its priority in deadlock handling.
+     * @param restarted: the id of the aborted transaction
+     */
+    public TransactionId(TransactionId restarted) {
+        myid = counter.getAndIncrement();
+        timestamp = restarted.timestamp;
+    }
+
     public long getId() {
         return myid;
     }
 
+    /**
+     * @return the timestamp of the transaction, smaller is older
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return true if this transaction started before other
+     */
+    public boolean isOlderThan(TransactionId other) {
+        if (timestamp != other.timestamp)
+            return timestamp < other.timestamp;
+        return myid < other.myid;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -0,0 +1,20 @@
+package simpledb;
+
+import java.util.Set;
+
+/**
+ * Wait-die deadlock prevention: an older transaction waits for a younger
+ * one, a younger transaction asking for a lock held by an older one dies
+ * (aborts). Transactions only ever wait for younger ones, so there are no
+ * cycles. A restarted transaction keeps its timestamp, so it eventually
+ * becomes the oldest and is not aborted again.
+ */
+public class WaitDiePolicy implements DeadlockPolicy {
+    public void beforeWait(LockManager lockManager, TransactionId tid, Set<TransactionId> blockers)
+        throws TransactionAbortedException {
+        for (TransactionId blocker : blockers) {
+            if (blocker.isOlderThan(tid))
+                throw new TransactionAbortedException();
+        }
+    }
+}
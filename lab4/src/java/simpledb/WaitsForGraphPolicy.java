@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Deadlock detection over the waits-for graph. When a transaction has to
+ * wait, the edges are followed from it; if they lead back to it, one
+ * transaction of the cycle is chosen as victim and aborted. A request may
+ * close several cycles, so the search goes on without the victims until
+ * no cycle leads back to the transaction.
+ * <p>
+ * The edges are read from the lock queues as they are walked, so the
+ * transaction closing a cycle always sees it.
+ */
+public class WaitsForGraphPolicy implements DeadlockPolicy {
+    /** How the victim of a deadlock is chosen among the transactions of the cycle. */
+    public enum Victim {
+        /** the transaction whose request closed the cycle */
+        REQUESTER,
+        /** the transaction with the latest timestamp */
+        YOUNGEST,
+        /** the transaction holding the fewest locks */
+        LEAST_WORK
+    }
+
+    private final Victim victim;
+
+    public WaitsForGraphPolicy() {
+        this(Victim.YOUNGEST);
+    }
+
+    /**
+     * @param victim how to choose the transaction to abort
+     */
+    public WaitsForGraphPolicy(Victim victim) {
+        this.victim = victim;
+    }
+
+    public void beforeWait(LockManager lockManager, TransactionId tid, Set<TransactionId> blockers)
+        throws TransactionAbortedException {
+        HashSet<TransactionId> victims = new HashSet<>();
+        while (true) {
+            LinkedList<TransactionId> cycle = new LinkedList<>();
+            cycle.add(tid);
+            // the victims release their locks once aborted, waiting for them is no deadlock
+            if (!findCycle(lockManager, tid, blockers, cycle, new HashSet<>(victims)))
+                return;
+            TransactionId chosen = chooseVictim(lockManager, victim, cycle);
+            Debug.log("deadlock between %d transactions, aborting %d", cycle.size(), chosen.getId());
+            if (chosen.equals(tid))
+                throw new TransactionAbortedException();
+            lockManager.abortTransaction(chosen);
+            victims.add(chosen);
+        }
+    }
+
+    /**
+     * depth first search for a path from the blockers back to the first
+     * transaction of path
+     * @param path: the transactions on the current path, extended with the cycle if found
+     * @param visited: transactions already searched
+     * @return true if a cycle was found
+     */
+    private boolean findCycle(LockManager lockManager, TransactionId tid, Set<TransactionId> blockers,
+                              LinkedList<TransactionId> path, HashSet<TransactionId> visited) {
+        for (TransactionId w : blockers) {
+            if (w.equals(path.getFirst()))
+                return true;
+            if (!visited.add(w))
+                continue;
+            path.addLast(w);
+            if (findCycle(lockManager, w, lockManager.getBlockers(w), path, visited))
+                return true;
+            path.removeLast();
+        }
+        return false;
+    }
+
+    /**
+     * @param victim: how to choose
+     * @param cycle: the transactions of a cycle, the requester first
+     * @return the transaction of the cycle to abort
+     */
+    static TransactionId chooseVictim(LockManager lockManager, Victim victim, List<TransactionId> cycle) {
+        TransactionId chosen = cycle.get(0);
+        if (victim == Victim.REQUESTER)
+            return chosen;
+        for (TransactionId t : cycle) {
+            if (victim == Victim.YOUNGEST && chosen.isOlderThan(t))
+                chosen = t;
+            if (victim == Victim.LEAST_WORK && lockManager.getNumLocks(t) < lockManager.getNumLocks(chosen))
+                chosen = t;
+        }
+        return chosen;
+    }
+}
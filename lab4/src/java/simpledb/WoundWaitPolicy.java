@@ -0,0 +1,22 @@
+package simpledb;
+
+import java.util.Set;
+
+/**
+ * Wound-wait deadlock prevention: an older transaction wounds (aborts) the
+ * younger transactions it has to wait for, a younger transaction waits for
+ * an older one. Transactions only ever wait for older ones, so there are no
+ * cycles.
+ * <p>
+ * A wounded transaction that is waiting for a lock is aborted right away,
+ * one that is running is aborted on its next lock request. Until then the
+ * older transaction waits, as a running transaction may also just commit.
+ */
+public class WoundWaitPolicy implements DeadlockPolicy {
+    public void beforeWait(LockManager lockManager, TransactionId tid, Set<TransactionId> blockers) {
+        for (TransactionId blocker : blockers) {
+            if (tid.isOlderThan(blocker))
+                lockManager.abortTransaction(blocker);
+        }
+    }
+}
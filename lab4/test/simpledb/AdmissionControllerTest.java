@@ -0,0 +1,101 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class AdmissionControllerTest extends TestUtil.CreateHeapFile {
+    private static final int WAIT_INTERVAL = 200;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    /**
+     * A transaction arriving when the cap is reached waits for one to complete.
+     */
+    @Test public void capsActiveTransactions() throws Exception {
+        final AdmissionController ac = new AdmissionController(true, 2);
+        TransactionId t1 = new TransactionId();
+        ac.admit(t1);
+        ac.admit(new TransactionId());
+        Thread third = new Thread() {
+            public void run() {
+                ac.admit(new TransactionId());
+            }
+        };
+        third.setDaemon(true);
+        third.start();
+        Thread.sleep(WAIT_INTERVAL);
+        assertTrue(third.isAlive());
+        assertEquals(1, ac.getNumQueued());
+
+        ac.release(t1, false);
+        third.join(WAIT_INTERVAL * 5);
+        assertFalse(third.isAlive());
+        assertEquals(2, ac.getNumActive());
+        assertEquals(1, ac.getDelayed());
+    }
+
+    /**
+     * The cap is halved after a window with many aborts, and grows by one
+     * after a window without.
+     */
+    @Test public void adaptsCap() throws Exception {
+        AdmissionController ac = new AdmissionController(true, 8);
+        for (int i = 0; i < AdmissionController.WINDOW; i++) {
+            TransactionId tid = new TransactionId();
+            ac.admit(tid);
+            ac.release(tid, i % 2 == 0);
+        }
+        assertEquals(4, ac.getLimit());
+        for (int i = 0; i < AdmissionController.WINDOW; i++) {
+            TransactionId tid = new TransactionId();
+            ac.admit(tid);
+            ac.release(tid, false);
+        }
+        assertEquals(5, ac.getLimit());
+    }
+
+    /**
+     * An aborted transaction is restarted with the same age.
+     */
+    @Test public void retriesAborted() throws Exception {
+        AdmissionController ac = Database.getAdmissionController();
+        final TransactionId[] first = new TransactionId[1];
+        Transaction t = ac.execute(new AdmissionController.Work() {
+            public void run(Transaction t) throws DbException, java.io.IOException,
+                    TransactionAbortedException {
+                Database.getBufferPool().insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(1, 2));
+                if (first[0] == null) {
+                    first[0] = t.getId();
+                    throw new TransactionAbortedException();
+                }
+            }
+        }, 3);
+        assertFalse(t.getId().equals(first[0]));
+        assertEquals(first[0].getTimestamp(), t.getId().getTimestamp());
+        assertEquals(1, ac.getRestarts());
+
+        TransactionId reader = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(reader,
+                new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+        int n = 0;
+        for (java.util.Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next())
+            n++;
+        assertEquals(1, n);
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AdmissionControllerTest.class);
+    }
+}
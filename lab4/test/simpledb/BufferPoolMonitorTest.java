@@ -0,0 +1,93 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolMonitorTest extends TestUtil.CreateHeapFile {
+    private PageId p0, p1, p2;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        p0 = new HeapPageId(empty.getId(), 0);
+        p1 = new HeapPageId(empty.getId(), 1);
+        p2 = new HeapPageId(empty.getId(), 2);
+    }
+
+    /**
+     * Hits, misses, evictions and residency follow the page requests.
+     */
+    @Test public void counters() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        BufferPoolMonitor monitor = new BufferPoolMonitor();
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+
+        assertEquals(1, monitor.getHits());
+        assertEquals(3, monitor.getMisses());
+        assertEquals(0.25, monitor.getHitRatio(), 0.0001);
+        assertEquals(1, monitor.getEvictions());
+        assertEquals(1, monitor.getDirtyPages());
+        assertEquals(2, monitor.getResidentPages());
+        assertArrayEquals(new String[] { Database.getCatalog().getTableName(empty.getId()) + ": 2" },
+                monitor.getTableResidency());
+
+        bp.transactionComplete(tid);
+        assertEquals(0, monitor.getDirtyPages());
+        assertEquals(1, monitor.getPagesWritten());
+
+        monitor.resetStatistics();
+        assertEquals(0, monitor.getHits());
+        assertEquals(0, monitor.getMisses());
+        assertEquals(0, monitor.getPagesWritten());
+    }
+
+    /**
+     * The monitor is published on the platform MBean server.
+     */
+    @Test public void registered() throws Exception {
+        Database.resetBufferPool(2).getPage(tid, p0, Permissions.READ_ONLY);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("simpledb:type=BufferPool");
+        assertTrue(server.isRegistered(name));
+        assertEquals(1L, server.getAttribute(name, "Misses"));
+        assertEquals(2, server.getAttribute(name, "MaxPages"));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void latencyHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 99; i++)
+            h.record(3000); // 3us
+        h.record(1000000); // 1ms
+        assertEquals(100, h.getCount());
+        assertEquals(4, h.getPercentileMicros(0.5));
+        assertEquals(1024, h.getPercentileMicros(1.0));
+        h.reset();
+        assertEquals(0, h.getCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolMonitorTest.class);
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolResizeTest extends TestUtil.CreateHeapFile {
+    private PageId p0, p1, p2;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        p0 = new HeapPageId(empty.getId(), 0);
+        p1 = new HeapPageId(empty.getId(), 1);
+        p2 = new HeapPageId(empty.getId(), 2);
+    }
+
+    /**
+     * Shrinking evicts clean pages, growing lets more pages in.
+     */
+    @Test public void shrinkAndGrow() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        assertEquals(3, bp.getNumPages());
+
+        bp.resize(1);
+        assertEquals(1, bp.getMaxPages());
+        assertEquals(1, bp.getNumPages());
+
+        bp.resize(3);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        assertEquals(3, bp.getNumPages());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Under NO STEAL dirty pages are not evicted by a shrink, the pool stays
+     * above its new size until they are clean.
+     */
+    @Test public void shrinkKeepsDirtyPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3);
+        assertFalse(bp.isSteal());
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+
+        bp.resize(1);
+        assertEquals(2, bp.getNumPages());
+        try {
+            bp.getPage(new TransactionId(), p2, Permissions.READ_ONLY);
+            fail("expected DbException, every page in the pool is dirty");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * Under STEAL a shrink writes dirty pages out and evicts them. A stolen
+     * page read back keeps its committed before image, and an abort puts
+     * the committed image back on disk.
+     */
+    @Test public void shrinkStealsDirtyPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3);
+        bp.setSteal(true);
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+        byte[] committed = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.markDirty(true, tid);
+        bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+
+        bp.resize(1);
+        assertEquals(1, bp.getNumPages());
+        assertEquals(2, bp.getPagesWritten());
+        assertFalse(Arrays.equals(committed, empty.readPage(p0).getPageData()));
+
+        HeapPage stolen = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(tid, stolen.isDirty());
+        assertArrayEquals(committed, stolen.getBeforeImage().getPageData());
+
+        bp.transactionComplete(tid, false);
+        assertArrayEquals(committed, empty.readPage(p0).getPageData());
+    }
+
+    /**
+     * An off-heap pool resizes its frame arena with it.
+     */
+    @Test public void offHeapResize() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3L * BufferPool.getPageSize(), true);
+        PageFrameArena arena = bp.getFrameArena();
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        assertEquals(2, arena.getFramesInUse());
+
+        bp.resize(1);
+        assertEquals(1, arena.getCapacity());
+        assertEquals(1, arena.getFramesInUse());
+
+        bp.resize(4);
+        assertEquals(4, arena.getCapacity());
+        assertEquals(4L * BufferPool.getPageSize(), arena.getReservedBytes());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The adaptive sizer gives memory back when the hit ratio is above its
+     * target and asks for more when it is below.
+     */
+    @Test public void adaptiveSizing() throws Exception {
+        BufferPool bp = Database.resetBufferPool(20);
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(bp, 0.5, 10, 40, 1000);
+        for (int i = 0; i < 200; i++)
+            bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(18, sizer.nextSize());
+
+        bp.resize(1);
+        for (int i = 0; i < 200; i++)
+            bp.getPage(tid, i % 2 == 0 ? p1 : p2, Permissions.READ_ONLY);
+        assertEquals(2, sizer.nextSize());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolResizeTest.class);
+    }
+}
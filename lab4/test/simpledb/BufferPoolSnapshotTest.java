@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolSnapshotTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+    private PageId p0;
+
+    /**
+     * Set up initial resources for each unit test: one committed tuple.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(tid);
+        p0 = new HeapPageId(empty.getId(), 0);
+    }
+
+    private int countTuples(TransactionId tid) throws Exception {
+        Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * A snapshot reader is not blocked by a writer and keeps seeing the
+     * data committed when it started, a later snapshot sees the new data.
+     */
+    @Test public void readsSnapshot() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(1, countTuples(reader));
+
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(2, 2));
+        assertTrue(bp.holdsLock(writer, p0));
+        assertEquals(1, countTuples(reader));
+        assertFalse(bp.holdsLock(reader, p0));
+
+        bp.transactionComplete(writer);
+        assertEquals(1, countTuples(reader));
+        assertEquals(1, bp.getNumPageVersions());
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(2, countTuples(later));
+
+        bp.transactionComplete(reader);
+        assertEquals(0, bp.getNumPageVersions());
+        assertEquals(2, countTuples(later));
+        bp.transactionComplete(later);
+    }
+
+    /**
+     * The snapshot survives the eviction of the page it reads.
+     */
+    @Test public void readsEvictedPage() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(2, 2));
+        bp.transactionComplete(writer);
+        bp.discardPage(p0);
+        assertEquals(1, countTuples(reader));
+        bp.transactionComplete(reader);
+    }
+
+    @Test(expected = DbException.class) public void readOnly() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        bp.getPage(reader, p0, Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolSnapshotTest.class);
+    }
+}
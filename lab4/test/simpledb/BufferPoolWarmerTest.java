@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolWarmerTest extends TestUtil.CreateHeapFile {
+    private File hotPages;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        TransactionId tid = new TransactionId();
+        // three full pages and a bit
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        hotPages = File.createTempFile("hotpages", "");
+        hotPages.deleteOnExit();
+    }
+
+    /**
+     * Pages saved from one pool are prefetched into a fresh pool.
+     */
+    @Test public void saveAndWarmUp() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(empty.getId(), 2), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        bp.saveResidentPages(hotPages);
+
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        BufferPoolWarmer warmer = new BufferPoolWarmer(bp, hotPages, 2);
+        warmer.run();
+        assertEquals(2, warmer.getPagesLoaded());
+
+        // already resident pages are not loaded twice
+        warmer = new BufferPoolWarmer(bp, hotPages, 2);
+        warmer.run();
+        assertEquals(0, warmer.getPagesLoaded());
+    }
+
+    /**
+     * Warm-up stops once the pool is full.
+     */
+    @Test public void stopsWhenFull() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            bp.getPage(tid, new HeapPageId(empty.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        bp.saveResidentPages(hotPages);
+
+        bp = Database.resetBufferPool(2);
+        BufferPoolWarmer warmer = new BufferPoolWarmer(bp, hotPages, 1);
+        warmer.run();
+        assertEquals(2, warmer.getPagesLoaded());
+        assertTrue(bp.isFull());
+    }
+
+    /**
+     * A prefetch is only dropped if the pool writes or drops the page it is
+     * reading, writes to other pages leave it alone.
+     */
+    @Test public void staleOnlyForSamePage() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapPageId p0 = new HeapPageId(empty.getId(), 0);
+        HeapPageId p1 = new HeapPageId(empty.getId(), 1);
+
+        HeapPageId p2 = new HeapPageId(empty.getId(), 2);
+
+        assertTrue(bp.beginPrefetch(p0));
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushPages(tid);
+        assertEquals(1, bp.getPagesWritten());
+        assertTrue(bp.installPrefetch(empty.readPage(p0)));
+        bp.transactionComplete(tid);
+
+        assertTrue(bp.beginPrefetch(p2));
+        bp.discardPage(p2);
+        assertFalse(bp.installPrefetch(empty.readPage(p2)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolWarmerTest.class);
+    }
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 
 import org.junit.After;
 import org.junit.Before;
@@ -133,6 +134,86 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for BufferPool.flushPages(): only the pages of the given
+     * transaction reach the file, and they stay dirty in the pool.
+     */
+    @Test public void flushPages() throws Exception {
+    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*3, null, null);
+    	Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    	TransactionId other = new TransactionId();
+
+    	// dirty pages 2 and 0 for tid, page 1 for another transaction
+    	ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    	DbFileIterator it = hf.iterator(tid);
+    	it.open();
+    	while(it.hasNext()) {
+    		tuples.add(it.next());
+    	}
+    	it.close();
+    	Database.getBufferPool().deleteTuple(tid, tuples.get(504*2));
+    	Database.getBufferPool().deleteTuple(tid, tuples.get(0));
+    	Page p1 = Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+    	p1.markDirty(true, other);
+
+    	Database.getBufferPool().flushPages(tid);
+
+    	for (int pgNo = 0; pgNo < 3; pgNo++) {
+    		HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo));
+    		assertEquals(pgNo == 1 ? 0 : 1, onDisk.getNumEmptySlots());
+    	}
+    	HeapPage p0 = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+    	assertEquals(tid, p0.isDirty());
+    	p1.markDirty(false, null);
+    }
+
+    /**
+     * Two transactions insert into and delete from the same page without
+     * waiting for each other; an abort undoes only its own slots, through
+     * the log as well as in the pool.
+     */
+    @Test(timeout=10000) public void sharedPage() throws Exception {
+    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2, null, null);
+    	Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    	ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    	DbFileIterator it = hf.iterator(tid);
+    	it.open();
+    	while(it.hasNext()) {
+    		tuples.add(it.next());
+    	}
+    	it.close();
+    	Database.getBufferPool().transactionComplete(tid);
+
+    	Transaction t1 = new Transaction();
+    	Transaction t2 = new Transaction();
+    	t1.start();
+    	t2.start();
+    	BufferPool bp = Database.getBufferPool();
+    	bp.deleteTuple(t1.getId(), tuples.get(0));
+    	bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(7, 2));
+    	bp.deleteTuple(t2.getId(), tuples.get(1));
+    	bp.insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(8, 2));
+    	PageId pid = new HeapPageId(hf.getId(), 0);
+    	assertEquals(1, hf.numPages());
+
+    	// the log sees both transactions on the page before t1 rolls back
+    	bp.flushAllPages();
+    	t1.abort();
+    	t2.commit();
+
+    	Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    	tid = new TransactionId();
+    	HeapPage page = (HeapPage) hf.readPage(pid);
+    	ArrayList<Tuple> left = new ArrayList<Tuple>();
+    	Iterator<Tuple> pit = page.iterator();
+    	while(pit.hasNext()) {
+    		left.add(pit.next());
+    	}
+    	assertEquals(2, left.size());
+    	assertEquals(tuples.get(0).getField(0), left.get(0).getField(0));
+    	assertEquals(Utility.getHeapTuple(8, 2).getField(0), left.get(1).getField(0));
+    }
+
     /**
      * JUnit suite target
      */
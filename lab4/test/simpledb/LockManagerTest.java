@@ -0,0 +1,425 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+    private static final int WAIT_INTERVAL = 200;
+
+    private LockManager lm;
+    private PageId p0;
+    private TransactionId tid1, tid2, tid3;
+
+    /** acquires a lock in its own thread, so the test can watch it block */
+    static class Grabber extends Thread {
+        private final LockManager lm;
+        private final TransactionId tid;
+        private final PageId pid;
+        private final boolean write;
+        volatile boolean acquired;
+        volatile Exception error;
+
+        Grabber(LockManager lm, TransactionId tid, PageId pid, boolean write) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.write = write;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                if (write)
+                    lm.acquireWriteLock(tid, pid);
+                else
+                    lm.acquireReadLock(tid, pid);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /**
+     * A reader arriving after a waiting writer queues behind it instead of
+     * sharing the page with the current reader.
+     */
+    @Test public void writerNotStarved() throws Exception {
+        lm.acquireReadLock(tid1, p0);
+        Grabber writer = new Grabber(lm, tid2, p0, true);
+        Thread.sleep(WAIT_INTERVAL);
+        Grabber reader = new Grabber(lm, tid3, p0, false);
+        Thread.sleep(WAIT_INTERVAL);
+        assertFalse(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.releaseAllLocks(tid1);
+        writer.join(WAIT_INTERVAL * 5);
+        assertTrue(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.releaseAllLocks(tid2);
+        reader.join(WAIT_INTERVAL * 5);
+        assertTrue(reader.acquired);
+        assertTrue(lm.holdsLock(tid3, p0));
+    }
+
+    /**
+     * Completing a transaction withdraws the requests it is waiting for.
+     */
+    @Test public void releaseCancelsWaiters() throws Exception {
+        lm.acquireWriteLock(tid1, p0);
+        Grabber waiter = new Grabber(lm, tid2, p0, false);
+        Thread.sleep(WAIT_INTERVAL);
+        lm.releaseAllLocks(tid2);
+        waiter.join(WAIT_INTERVAL * 5);
+        assertFalse(waiter.acquired);
+        assertTrue(waiter.error instanceof TransactionAbortedException);
+
+        lm.releaseAllLocks(tid1);
+        lm.acquireWriteLock(tid3, p0);
+        assertTrue(lm.holdsLock(tid3, p0));
+    }
+
+    /**
+     * Wait-die: a younger transaction dies instead of waiting for an older
+     * one, an older transaction waits.
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(new WaitDiePolicy());
+        lm.acquireWriteLock(tid1, p0);
+        try {
+            lm.acquireReadLock(tid2, p0);
+            fail("younger transaction should have died");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAllLocks(tid2);
+        lm.releaseAllLocks(tid1);
+
+        lm.acquireWriteLock(tid2, p0);
+        Grabber older = new Grabber(lm, tid1, p0, false);
+        Thread.sleep(WAIT_INTERVAL);
+        assertNull(older.error);
+        lm.releaseAllLocks(tid2);
+        older.join(WAIT_INTERVAL * 5);
+        assertTrue(older.acquired);
+    }
+
+    /**
+     * Wound-wait: an older transaction aborts the younger one it waits for.
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(new WoundWaitPolicy());
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquireWriteLock(tid2, p0);
+        lm.acquireWriteLock(tid1, p1);
+        Grabber younger = new Grabber(lm, tid2, p1, true);
+        Thread.sleep(WAIT_INTERVAL);
+        assertNull(younger.error);
+
+        // tid1 wounds tid2, which is waiting and so aborts right away
+        Grabber older = new Grabber(lm, tid1, p0, true);
+        younger.join(WAIT_INTERVAL * 5);
+        assertTrue(younger.error instanceof TransactionAbortedException);
+        try {
+            lm.acquireReadLock(tid2, new HeapPageId(1, 2));
+            fail("wounded transaction should not get more locks");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(older.acquired);
+        lm.releaseAllLocks(tid2);
+        older.join(WAIT_INTERVAL * 5);
+        assertTrue(older.acquired);
+    }
+
+    /**
+     * The waits-for graph detector aborts the youngest transaction of a
+     * cycle, even if an older one closed it.
+     */
+    @Test public void graphAbortsYoungest() throws Exception {
+        lm.setDeadlockPolicy(new WaitsForGraphPolicy(WaitsForGraphPolicy.Victim.YOUNGEST));
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquireWriteLock(tid1, p0);
+        lm.acquireWriteLock(tid2, p1);
+        Grabber younger = new Grabber(lm, tid2, p0, true);
+        Thread.sleep(WAIT_INTERVAL);
+        Grabber older = new Grabber(lm, tid1, p1, true);
+        younger.join(WAIT_INTERVAL * 5);
+        assertTrue(younger.error instanceof TransactionAbortedException);
+        lm.releaseAllLocks(tid2);
+        older.join(WAIT_INTERVAL * 5);
+        assertTrue(older.acquired);
+    }
+
+    /**
+     * A request closing two cycles gets both broken, not only the first
+     * one the search finds.
+     */
+    @Test public void graphBreaksEveryCycle() throws Exception {
+        lm.setDeadlockPolicy(new WaitsForGraphPolicy(WaitsForGraphPolicy.Victim.YOUNGEST));
+        PageId p1 = new HeapPageId(1, 1);
+        PageId p2 = new HeapPageId(1, 2);
+        lm.acquireReadLock(tid1, p1);
+        lm.acquireReadLock(tid1, p2);
+        lm.acquireReadLock(tid2, p0);
+        lm.acquireReadLock(tid3, p0);
+        Grabber second = new Grabber(lm, tid2, p1, true);
+        Grabber third = new Grabber(lm, tid3, p2, true);
+        Thread.sleep(WAIT_INTERVAL);
+        Grabber first = new Grabber(lm, tid1, p0, true);
+        second.join(WAIT_INTERVAL * 5);
+        third.join(WAIT_INTERVAL * 5);
+        assertTrue(second.error instanceof TransactionAbortedException);
+        assertTrue(third.error instanceof TransactionAbortedException);
+        lm.releaseAllLocks(tid2);
+        lm.releaseAllLocks(tid3);
+        first.join(WAIT_INTERVAL * 5);
+        assertTrue(first.acquired);
+    }
+
+    /**
+     * With the background detector requests wait right away, the deadlock
+     * is broken by the detector thread.
+     */
+    @Test public void backgroundDetector() throws Exception {
+        DeadlockDetector detector = new DeadlockDetector(lm, 50, WaitsForGraphPolicy.Victim.YOUNGEST);
+        lm.setDeadlockPolicy(detector);
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquireWriteLock(tid1, p0);
+        lm.acquireWriteLock(tid2, p1);
+        Grabber older = new Grabber(lm, tid1, p1, true);
+        Grabber younger = new Grabber(lm, tid2, p0, true);
+        younger.join(WAIT_INTERVAL * 5);
+        assertTrue(younger.error instanceof TransactionAbortedException);
+        assertEquals(1, detector.getDeadlocksFound());
+        lm.releaseAllLocks(tid2);
+        older.join(WAIT_INTERVAL * 5);
+        assertTrue(older.acquired);
+        detector.shutdown();
+    }
+
+    @Test public void lockModes() {
+        assertTrue(LockMode.IS.isCompatibleWith(LockMode.SIX));
+        assertTrue(LockMode.IX.isCompatibleWith(LockMode.IX));
+        assertFalse(LockMode.IX.isCompatibleWith(LockMode.S));
+        assertFalse(LockMode.SIX.isCompatibleWith(LockMode.SIX));
+        assertEquals(LockMode.SIX, LockMode.S.combine(LockMode.IX));
+        assertEquals(LockMode.X, LockMode.SIX.combine(LockMode.X));
+        assertTrue(LockMode.SIX.covers(LockMode.S));
+        assertFalse(LockMode.S.covers(LockMode.IX));
+        assertTrue(LockMode.S.coversChildren(LockMode.S));
+        assertFalse(LockMode.SIX.coversChildren(LockMode.X));
+    }
+
+    /**
+     * A shared table lock covers reading its pages, no page lock is taken.
+     */
+    @Test public void tableLockCoversPages() throws Exception {
+        lm.acquireLock(tid1, LockId.table(1), LockMode.S);
+        lm.acquireReadLock(tid1, p0);
+        assertTrue(lm.holdsLock(tid1, p0));
+        assertEquals(1, lm.getLocks(tid1).size());
+
+        // writing a page upgrades the table lock to SIX
+        lm.acquireWriteLock(tid1, p0);
+        assertEquals(LockMode.SIX, lm.getMode(tid1, LockId.table(1)));
+        assertEquals(LockMode.X, lm.getMode(tid1, LockId.page(p0)));
+    }
+
+    /**
+     * A scan only takes IS on its table, a writer of another page goes on,
+     * and updating a page the scan read upgrades that page lock alone.
+     */
+    @Test public void scanThenUpdate() throws Exception {
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquireLock(tid1, LockId.table(1), LockMode.IS);
+        lm.acquireReadLock(tid1, p0);
+        lm.acquireReadLock(tid1, p1);
+        PageId p2 = new HeapPageId(1, 2);
+        lm.acquireWriteLock(tid2, p2);
+
+        lm.acquireWriteLock(tid1, p0);
+        assertEquals(LockMode.IX, lm.getMode(tid1, LockId.table(1)));
+        assertEquals(LockMode.X, lm.getMode(tid1, LockId.page(p0)));
+        assertEquals(LockMode.S, lm.getMode(tid1, LockId.page(p1)));
+    }
+
+    /**
+     * Writers of different pages share the table, a table scan waits for them.
+     */
+    @Test public void intentionLocks() throws Exception {
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquireWriteLock(tid1, p0);
+        lm.acquireWriteLock(tid2, p1);
+        assertEquals(LockMode.IX, lm.getMode(tid1, LockId.table(1)));
+        PageId p2 = new HeapPageId(1, 2);
+        lm.acquireReadLock(tid1, p2);
+        assertEquals(LockMode.S, lm.getMode(tid1, LockId.page(p2)));
+        assertEquals(LockMode.IX, lm.getMode(tid1, LockId.table(1)));
+
+        Thread scanner = new Thread() {
+            public void run() {
+                try {
+                    lm.acquireLock(tid3, LockId.table(1), LockMode.S);
+                } catch (TransactionAbortedException e) {
+                    // the assertions below fail
+                }
+            }
+        };
+        scanner.setDaemon(true);
+        scanner.start();
+        Thread.sleep(WAIT_INTERVAL);
+        assertNull(lm.getMode(tid3, LockId.table(1)));
+        lm.releaseAllLocks(tid1);
+        lm.releaseAllLocks(tid2);
+        scanner.join(WAIT_INTERVAL * 5);
+        assertEquals(LockMode.S, lm.getMode(tid3, LockId.table(1)));
+    }
+
+    /**
+     * Writers of different records share their page under IX, a page
+     * reader waits for them.
+     */
+    @Test public void recordLocks() throws Exception {
+        RecordId r0 = new RecordId(p0, 0);
+        RecordId r1 = new RecordId(p0, 1);
+        lm.acquireLock(tid1, LockId.record(r0), LockMode.X);
+        lm.acquireLock(tid2, LockId.record(r1), LockMode.X);
+        assertEquals(LockMode.IX, lm.getMode(tid1, LockId.page(p0)));
+        assertEquals(LockMode.IX, lm.getMode(tid2, LockId.page(p0)));
+        assertEquals(LockMode.IX, lm.getMode(tid2, LockId.table(1)));
+
+        assertFalse(lm.tryAcquireLock(tid3, LockId.record(r0), LockMode.S));
+        assertFalse(lm.tryAcquireLock(tid3, LockId.page(p0), LockMode.S));
+        assertTrue(lm.tryAcquireLock(tid3, LockId.record(new RecordId(p0, 2)), LockMode.S));
+        assertEquals(LockMode.IS, lm.getMode(tid3, LockId.page(p0)));
+
+        lm.releaseAllLocks(tid1);
+        assertTrue(lm.tryAcquireLock(tid3, LockId.record(r0), LockMode.S));
+    }
+
+    /**
+     * Page locks above the threshold are replaced by a table lock, unless
+     * another transaction holds an incompatible lock on the table.
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(3);
+        for (int i = 0; i < 4; i++)
+            lm.acquireReadLock(tid1, new HeapPageId(1, i));
+        assertEquals(LockMode.S, lm.getMode(tid1, LockId.table(1)));
+        assertEquals(1, lm.getLocks(tid1).size());
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 2)));
+        assertEquals(1, lm.getLockTableSize());
+
+        // a writer of the second table keeps tid1 from escalating there
+        lm.acquireWriteLock(tid2, new HeapPageId(2, 9));
+        for (int i = 0; i < 4; i++)
+            lm.acquireReadLock(tid1, new HeapPageId(2, i));
+        assertEquals(LockMode.IS, lm.getMode(tid1, LockId.table(2)));
+        assertEquals(6, lm.getLocks(tid1).size());
+    }
+
+    /**
+     * A failed escalation is not tried on every page lock, but it is tried
+     * again as soon as the lock that made it fail is released.
+     */
+    @Test public void escalationRetry() throws Exception {
+        lm.setEscalationThreshold(2);
+        lm.acquireWriteLock(tid2, new HeapPageId(1, 9));
+        for (int i = 0; i < 3; i++)
+            lm.acquireReadLock(tid1, new HeapPageId(1, i));
+        assertEquals(LockMode.IS, lm.getMode(tid1, LockId.table(1)));
+
+        // the retry after the first failure is due at 4 page locks
+        lm.releaseAllLocks(tid2);
+        lm.acquireReadLock(tid1, new HeapPageId(1, 3));
+        assertEquals(LockMode.S, lm.getMode(tid1, LockId.table(1)));
+        assertEquals(1, lm.getLocks(tid1).size());
+    }
+
+    /**
+     * Lock table entries are dropped once they are free.
+     */
+    @Test public void reclaimFreeLocks() throws Exception {
+        lm.acquireWriteLock(tid1, p0);
+        lm.acquireReadLock(tid2, new HeapPageId(1, 1));
+        assertEquals(3, lm.getLockTableSize());
+        lm.releaseAllLocks(tid1);
+        assertEquals(2, lm.getLockTableSize());
+        lm.releaseAllLocks(tid2);
+        assertEquals(0, lm.getLockTableSize());
+    }
+
+    /**
+     * Waits, upgrade conflicts and deadlock aborts are counted per page and
+     * table while statistics are enabled.
+     */
+    @Test public void contentionStatistics() throws Exception {
+        assertNull(lm.getStatistics());
+        lm.setStatisticsEnabled(true);
+        lm.setDeadlockPolicy(new WaitDiePolicy());
+        lm.acquireReadLock(tid1, p0);
+        lm.acquireReadLock(tid2, p0);
+
+        // tid1 is older, its upgrade waits for tid2
+        Grabber upgrade = new Grabber(lm, tid1, p0, true);
+        Thread.sleep(WAIT_INTERVAL);
+        lm.releaseAllLocks(tid2);
+        upgrade.join(WAIT_INTERVAL * 5);
+        assertTrue(upgrade.acquired);
+
+        // tid3 is younger and dies
+        try {
+            lm.acquireReadLock(tid3, p0);
+            fail("younger transaction should have died");
+        } catch (TransactionAbortedException e) {
+            lm.releaseAllLocks(tid3);
+        }
+
+        LockStatistics stats = lm.getStatistics();
+        assertEquals(2, stats.getWaits());
+        assertEquals(1, stats.getUpgradeConflicts());
+        assertEquals(1, stats.getDeadlockAborts());
+        assertTrue(stats.getWaitMillis() >= WAIT_INTERVAL / 2);
+        LockStatistics.Contention page = stats.getHottestPages(5).get(0);
+        assertEquals(LockId.page(p0), page.getLockId());
+        assertEquals(2, page.getWaits());
+        assertEquals(1, stats.getHottestTables(5).size());
+
+        lm.resetStatistics();
+        assertEquals(0, lm.getStatistics().getWaits());
+        lm.setStatisticsEnabled(false);
+        assertNull(lm.getStatistics());
+    }
+
+    /**
+     * A restarted transaction keeps the age of the aborted one.
+     */
+    @Test public void restartKeepsTimestamp() {
+        TransactionId restarted = new TransactionId(tid1);
+        assertFalse(restarted.equals(tid1));
+        assertEquals(tid1.getTimestamp(), restarted.getTimestamp());
+        assertTrue(restarted.isOlderThan(tid2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
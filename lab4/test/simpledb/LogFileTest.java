@@ -0,0 +1,279 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest {
+    private File file;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("log", ".dat");
+        file.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    @After public void tearDown() {
+        for (long seg = 0; log.getSegmentFile(seg).exists(); seg++)
+            log.getSegmentFile(seg).delete();
+        file.delete();
+    }
+
+    /** commits a transaction in its own thread */
+    private Thread committer(final TransactionId tid) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    log.logCommit(tid);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Concurrent committers share the force of a group commit.
+     */
+    @Test public void groupCommit() throws Exception {
+        log.setGroupCommit(4, 2000000);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            threads[i] = committer(tid);
+        }
+        for (Thread t : threads)
+            t.join(5000);
+        for (Thread t : threads)
+            assertFalse(t.isAlive());
+        assertEquals(1, log.getForces());
+    }
+
+    /**
+     * A committer alone waits no longer than the group commit delay.
+     */
+    @Test public void delayBound() throws Exception {
+        log.setGroupCommit(4, 100000);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = System.currentTimeMillis();
+        log.logCommit(tid);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 90 && elapsed < 2000);
+        assertEquals(1, log.getForces());
+    }
+
+    /**
+     * Records stay in the log buffer until a force, which makes them durable.
+     */
+    @Test public void logBuffer() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long begin = log.getCurrentLsn();
+        assertTrue(begin > log.getFlushedLsn());
+        assertFalse(log.getSegmentFile(0).exists());
+
+        log.logCommit(tid);
+        assertTrue(log.getCurrentLsn() > begin);
+        assertEquals(log.getCurrentLsn(), log.getFlushedLsn());
+        assertEquals(log.getCurrentLsn(), log.getDurableLsn());
+        assertEquals(log.getFlushedLsn(), log.getSegmentFile(0).length());
+    }
+
+    /**
+     * The first update of a page by a transaction is logged as a delta, much
+     * smaller than the two images of an UPDATE record.
+     */
+    @Test public void deltaRecord() throws Exception {
+        File table = File.createTempFile("delta", ".dat");
+        table.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(table.getAbsolutePath(), 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.getCurrentLsn();
+        log.logWrite(tid, before, after);
+        long delta = log.getCurrentLsn() - start;
+        assertTrue(delta < BufferPool.getPageSize() / 8);
+
+        // the next record of the page in the transaction is a full image
+        start = log.getCurrentLsn();
+        log.logWrite(tid, before, after);
+        assertTrue(log.getCurrentLsn() - start > 2 * BufferPool.getPageSize());
+        table.delete();
+    }
+
+    /**
+     * The scheduler takes a checkpoint once enough bytes are logged, but
+     * leaves a log alone until it is recovered or appended to.
+     */
+    @Test public void checkpointScheduler() throws Exception {
+        log.enableCheckpointScheduler(0, 1);
+        Thread.sleep(300);
+        assertEquals(0, log.getLastCheckpointLsn());
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.getLastCheckpointLsn() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        log.disableCheckpointScheduler();
+        assertTrue(log.getLastCheckpointLsn() > 0);
+    }
+
+    /**
+     * Records span segments, truncation deletes the segments before the
+     * first record still needed, and a reopened log finds its end.
+     */
+    @Test public void segments() throws Exception {
+        log = new LogFile(file, 256);
+        TransactionId open = new TransactionId();
+        log.logXactionBegin(open);
+        for (int i = 0; i < 40; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        assertTrue(log.getSegmentFile(3).exists());
+
+        // the open transaction keeps the first segment
+        log.logCheckpoint();
+        assertEquals(0, log.getSegmentsDropped());
+        assertTrue(log.getSegmentFile(0).exists());
+
+        log.logCommit(open);
+        log.logCheckpoint();
+        assertTrue(log.getSegmentsDropped() > 0);
+        assertFalse(log.getSegmentFile(0).exists());
+
+        long end = log.getCurrentLsn();
+        log = new LogFile(file, 256);
+        log.recover();
+        assertEquals(end, log.getCurrentLsn());
+    }
+
+    /**
+     * Forces sync the segments outside the monitor while other threads
+     * append and truncate the log, and every forced record is durable.
+     */
+    @Test public void forceWhileAppending() throws Exception {
+        log = new LogFile(file, 256);
+        log.setGroupCommit(1, 0);
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean truncates = i == 0;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            long before = log.getCurrentLsn();
+                            log.logCommit(tid);
+                            // the COMMIT record is after before, and on disk
+                            assertTrue(log.getDurableLsn() > before);
+                            if (truncates && j % 10 == 0)
+                                log.logCheckpoint();
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join(10000);
+        assertNull(error[0]);
+        assertTrue(log.getSegmentsDropped() > 0);
+        log.force();
+        assertEquals(log.getCurrentLsn(), log.getDurableLsn());
+    }
+
+    /**
+     * Every record points back to the previous record of its transaction.
+     */
+    @Test public void prevLsnChain() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        long begin1 = log.getCurrentLsn();
+        log.logXactionBegin(t1);
+        long begin2 = log.getCurrentLsn();
+        log.logXactionBegin(t2);
+        long commit1 = log.getCurrentLsn();
+        log.logCommit(t1);
+
+        RandomAccessFile segment = new RandomAccessFile(log.getSegmentFile(0), "r");
+        try {
+            segment.seek(begin2);
+            assertEquals(LogFile.BEGIN_RECORD, segment.readInt());
+            assertEquals(t2.getId(), segment.readLong());
+            assertEquals(LogFile.NO_PREV_LSN, segment.readLong());
+
+            segment.seek(commit1);
+            assertEquals(LogFile.COMMIT_RECORD, segment.readInt());
+            assertEquals(t1.getId(), segment.readLong());
+            assertEquals(begin1, segment.readLong());
+        } finally {
+            segment.close();
+        }
+    }
+
+    /**
+     * An asynchronous commit returns before its record is forced, and the
+     * flusher forces it within its interval.
+     */
+    @Test public void asyncCommit() throws Exception {
+        log.setGroupCommit(1, 0);
+        log.setAsyncCommitFlushMillis(20);
+        log.enableLogFlusher();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid, true);
+        long end = log.getCurrentLsn();
+        assertTrue(log.getDurableLsn() < end);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.getDurableLsn() < end && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(end, log.getDurableLsn());
+        assertTrue(log.getForces() > 0);
+        log.disableLogFlusher();
+    }
+
+    /**
+     * Without a running flusher, an asynchronous commit is forced before
+     * it returns.
+     */
+    @Test public void asyncCommitWithoutFlusher() throws Exception {
+        log.setGroupCommit(1, 0);
+        log.disableLogFlusher();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid, true);
+        assertEquals(log.getCurrentLsn(), log.getDurableLsn());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OptimisticConcurrencyTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+    private PageId p0;
+
+    /**
+     * Set up initial resources for each unit test: one committed tuple.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(tid);
+        p0 = new HeapPageId(empty.getId(), 0);
+    }
+
+    private int countTuples(TransactionId tid) throws Exception {
+        Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    private TransactionId beginOptimistic() {
+        TransactionId tid = new TransactionId();
+        bp.beginOptimistic(tid);
+        return tid;
+    }
+
+    /**
+     * An optimistic writer takes no locks and its writes stay private
+     * until it commits.
+     */
+    @Test public void privateWrites() throws Exception {
+        TransactionId writer = beginOptimistic();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(2, countTuples(writer));
+        assertFalse(bp.holdsLock(writer, p0));
+
+        TransactionId reader = new TransactionId();
+        assertEquals(1, countTuples(reader));
+        bp.transactionComplete(reader);
+
+        bp.transactionComplete(writer);
+        assertFalse(bp.holdsLock(writer, p0));
+        TransactionId later = new TransactionId();
+        assertEquals(2, countTuples(later));
+        bp.transactionComplete(later);
+    }
+
+    /**
+     * The second of two transactions writing the same page fails
+     * validation, a restart of it then commits.
+     */
+    @Test public void writeConflict() throws Exception {
+        TransactionId t1 = beginOptimistic();
+        TransactionId t2 = beginOptimistic();
+        bp.insertTuple(t1, empty.getId(), Utility.getHeapTuple(2, 2));
+        bp.insertTuple(t2, empty.getId(), Utility.getHeapTuple(3, 2));
+        bp.validate(t1);
+        bp.transactionComplete(t1);
+        try {
+            bp.validate(t2);
+            fail("t2 read a page committed after it started");
+        } catch (TransactionAbortedException e) {
+            bp.transactionComplete(t2, false);
+        }
+        assertEquals(1, bp.getValidationFailures());
+
+        TransactionId retry = beginOptimistic();
+        bp.insertTuple(retry, empty.getId(), Utility.getHeapTuple(3, 2));
+        bp.transactionComplete(retry);
+        TransactionId reader = new TransactionId();
+        assertEquals(3, countTuples(reader));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Committing a transaction that was not validated and fails validation
+     * aborts it, releases its locks and reports the failure.
+     */
+    @Test public void commitFailsValidation() throws Exception {
+        TransactionId t1 = beginOptimistic();
+        TransactionId t2 = beginOptimistic();
+        bp.insertTuple(t1, empty.getId(), Utility.getHeapTuple(2, 2));
+        bp.insertTuple(t2, empty.getId(), Utility.getHeapTuple(3, 2));
+        bp.transactionComplete(t1);
+        try {
+            bp.transactionComplete(t2);
+            fail("t2 read a page committed after it started");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+        assertFalse(bp.isOptimistic(t2));
+        assertNull(bp.getLockManager().getLocks(t2));
+        TransactionId reader = new TransactionId();
+        assertEquals(2, countTuples(reader));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Validation fails instead of waiting when a locking transaction reads
+     * a page the optimistic one wrote.
+     */
+    @Test public void lockConflict() throws Exception {
+        TransactionId writer = beginOptimistic();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(2, 2));
+        TransactionId reader = new TransactionId();
+        countTuples(reader);
+        try {
+            bp.validate(writer);
+            fail("reader holds a shared lock on the written page");
+        } catch (TransactionAbortedException e) {
+            bp.transactionComplete(writer, false);
+        }
+        assertEquals(1, countTuples(reader));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Transactions run optimistically when it is the default, and commit
+     * aborts the ones that fail validation.
+     */
+    @Test public void transactionMode() throws Exception {
+        bp.setOptimisticDefault(true);
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        assertTrue(t1.isOptimistic());
+        t1.start();
+        t2.start();
+        bp.insertTuple(t1.getId(), empty.getId(), Utility.getHeapTuple(2, 2));
+        bp.insertTuple(t2.getId(), empty.getId(), Utility.getHeapTuple(3, 2));
+        t1.commit();
+        try {
+            t2.commit();
+            fail("t2 conflicts with t1");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(bp.isOptimistic(t2.getId()));
+
+        Transaction restarted = new Transaction(t2);
+        assertTrue(restarted.isOptimistic());
+        restarted.start();
+        bp.insertTuple(restarted.getId(), empty.getId(), Utility.getHeapTuple(3, 2));
+        restarted.commit();
+        TransactionId reader = new TransactionId();
+        assertEquals(3, countTuples(reader));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticConcurrencyTest.class);
+    }
+}
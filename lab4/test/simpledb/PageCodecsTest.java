@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageCodecsTest {
+    /** a page id class without a codec */
+    public static class OtherPageId implements PageId {
+        private final int tableId;
+        private final int pageNo;
+
+        public OtherPageId(Integer tableId, Integer pageNo) {
+            this.tableId = tableId;
+            this.pageNo = pageNo;
+        }
+
+        public int[] serialize() {
+            return new int[] { tableId, pageNo };
+        }
+
+        public int getTableId() {
+            return tableId;
+        }
+
+        public int getPageNumber() {
+            return pageNo;
+        }
+
+        public int hashCode() {
+            return tableId * 31 + pageNo;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof OtherPageId && ((OtherPageId) o).tableId == tableId
+                    && ((OtherPageId) o).pageNo == pageNo;
+        }
+    }
+
+    /** a page class without a codec */
+    public static class OtherHeapPage extends HeapPage {
+        public OtherHeapPage(HeapPageId id, byte[] data) throws IOException {
+            super(id, data);
+        }
+    }
+
+    private static byte[] write(PageId pid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageCodecs.writePageId(new DataOutputStream(bytes), pid);
+        return bytes.toByteArray();
+    }
+
+    private static PageId read(byte[] bytes) throws IOException {
+        return PageCodecs.readPageId(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * A HeapPageId is written as its tag and two ints.
+     */
+    @Test public void heapPageId() throws Exception {
+        HeapPageId pid = new HeapPageId(17, 4);
+        byte[] bytes = write(pid);
+        assertEquals(1 + 2 * 4, bytes.length);
+        assertEquals(pid, read(bytes));
+    }
+
+    /**
+     * Page ids without a codec are written with their class name.
+     */
+    @Test public void reflectivePageId() throws Exception {
+        OtherPageId pid = new OtherPageId(3, 9);
+        byte[] bytes = write(pid);
+        assertEquals(PageCodecs.REFLECTIVE, bytes[0]);
+        assertEquals(pid, read(bytes));
+    }
+
+    /**
+     * Pages without a codec share one reflective codec per class, also
+     * when it is read back from a log header.
+     */
+    @Test public void reflectiveCodecIsShared() throws Exception {
+        File f = File.createTempFile("codec", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page page = new OtherHeapPage(pid, HeapPage.createEmptyPageData());
+        PageCodecs.Codec codec = PageCodecs.codecOf(page);
+        assertEquals(PageCodecs.REFLECTIVE, codec.getTag());
+        assertSame(codec, PageCodecs.codecOf(new OtherHeapPage(pid, HeapPage.createEmptyPageData())));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageCodecs.writeHeader(new DataOutputStream(bytes), codec, pid);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertSame(codec, PageCodecs.readHeader(in));
+    }
+
+    /**
+     * A tag cannot be registered twice.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateTag() {
+        PageCodecs.register(PageCodecs.HEAP_PAGE, HeapPage.class, HeapPageId.class, null);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCodecsTest.class);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageFrameArenaTest extends TestUtil.CreateHeapFile {
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    /**
+     * Unit test for PageFrameArena.allocate() and release()
+     */
+    @Test public void allocateAndRelease() {
+        int pageSize = BufferPool.getPageSize();
+        PageFrameArena arena = new PageFrameArena(3L * pageSize + 10, pageSize);
+        assertEquals(3, arena.getCapacity());
+        assertEquals(3L * pageSize, arena.getBudgetBytes());
+
+        int f0 = arena.allocate();
+        int f1 = arena.allocate();
+        int f2 = arena.allocate();
+        assertEquals(-1, arena.allocate());
+        assertEquals(3, arena.getFramesInUse());
+
+        arena.release(f1);
+        assertEquals(2, arena.getFramesInUse());
+        assertEquals(f1, arena.allocate());
+        assertTrue(f0 != f2);
+    }
+
+    /**
+     * Frames do not overlap: writing one frame leaves the others untouched.
+     */
+    @Test public void framesAreDisjoint() {
+        int pageSize = BufferPool.getPageSize();
+        PageFrameArena arena = new PageFrameArena(2L * pageSize, pageSize);
+        ByteBuffer a = arena.frame(arena.allocate());
+        ByteBuffer b = arena.frame(arena.allocate());
+        assertEquals(pageSize, a.capacity());
+
+        byte[] ones = new byte[pageSize];
+        Arrays.fill(ones, (byte) 1);
+        a.put(ones);
+
+        byte[] read = new byte[pageSize];
+        b.get(read);
+        assertArrayEquals(new byte[pageSize], read);
+    }
+
+    /**
+     * An off-heap pool keeps before images in frames, and aborting a
+     * transaction still restores them.
+     */
+    @Test public void offHeapBeforeImage() throws Exception {
+        Tuple first = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid, first);
+        BufferPool bp = Database.resetBufferPool(4L * BufferPool.getPageSize(), true);
+        assertEquals(4, bp.getFrameArena().getCapacity());
+
+        PageId pid = new HeapPageId(empty.getId(), 0);
+        HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        assertEquals(1, bp.getFrameArena().getFramesInUse());
+        byte[] committed = p.getPageData();
+
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(2, 2));
+        assertArrayEquals(committed, p.getBeforeImage().getPageData());
+
+        bp.transactionComplete(tid, false);
+        HeapPage restored = (HeapPage) bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertArrayEquals(committed, restored.getPageData());
+        assertEquals(1, bp.getFrameArena().getFramesInUse());
+
+        bp.discardPage(pid);
+        assertEquals(0, bp.getFrameArena().getFramesInUse());
+        assertArrayEquals(committed, restored.getBeforeImage().getPageData());
+    }
+
+    /**
+     * A page attached to a frame reads and writes its tuples in the frame,
+     * and keeps its before image apart once it is modified.
+     */
+    @Test public void pageIsFrameView() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        PageFrameArena arena = new PageFrameArena(pageSize, pageSize);
+        ByteBuffer frame = arena.frame(arena.allocate());
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        HeapPage p = new HeapPage(pid, HeapPage.createEmptyPageData());
+        assertTrue(p.attachFrame(frame));
+
+        p.insertTuple(Utility.getHeapTuple(7, 2));
+        byte[] inFrame = new byte[pageSize];
+        frame.duplicate().get(inFrame);
+        assertArrayEquals(p.getPageData(), inFrame);
+        assertArrayEquals(HeapPage.createEmptyPageData(), p.getBeforeImage().getPageData());
+        assertEquals(7, ((IntField) p.iterator().next().getField(0)).getValue());
+
+        // the tuples are decoded from the frame
+        HeapPage other = new HeapPage(pid, HeapPage.createEmptyPageData());
+        other.insertTuple(Utility.getHeapTuple(9, 2));
+        frame.duplicate().put(other.getPageData());
+        assertEquals(9, ((IntField) p.iterator().next().getField(0)).getValue());
+
+        // once detached the page no longer sees the frame
+        p.detachFrame();
+        frame.duplicate().put(new byte[pageSize]);
+        assertEquals(9, ((IntField) p.iterator().next().getField(0)).getValue());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageFrameArenaTest.class);
+    }
+}
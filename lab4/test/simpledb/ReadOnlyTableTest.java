@@ -0,0 +1,120 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.NoSuchElementException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadOnlyTableTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+    private PageId p0;
+
+    /**
+     * Set up initial resources for each unit test: a read-only table with
+     * one tuple.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(tid);
+        Database.getCatalog().setReadOnly(empty.getId(), true);
+        p0 = new HeapPageId(empty.getId(), 0);
+    }
+
+    /**
+     * Pages are shared without locks, even next to a table scan.
+     */
+    @Test public void readsWithoutLocks() throws Exception {
+        assertTrue(Database.getCatalog().isReadOnly(empty.getId()));
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.lockTable(t1, empty.getId(), LockMode.X);
+        Page page = bp.getPage(t1, p0, Permissions.READ_ONLY);
+        assertSame(page, bp.getPage(t2, p0, Permissions.READ_ONLY));
+        assertFalse(bp.holdsLock(t1, p0));
+        assertEquals(0, bp.getLockManager().getLockTableSize());
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2);
+    }
+
+    @Test public void rejectsWrites() throws Exception {
+        TransactionId tid = new TransactionId();
+        try {
+            bp.getPage(tid, p0, Permissions.READ_WRITE);
+            fail("page of a read-only table fetched for writing");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(2, 2));
+            fail("insert into a read-only table");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid);
+        assertEquals(1, empty.numPages());
+
+        Database.getCatalog().setReadOnly(empty.getId(), false);
+        tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(2, 2));
+        assertTrue(bp.holdsLock(tid, p0));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The table cannot become read-only while a transaction writes it.
+     */
+    @Test public void rejectsChangeWhileWritten() throws Exception {
+        Database.getCatalog().setReadOnly(empty.getId(), false);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(2, 2));
+        try {
+            Database.getCatalog().setReadOnly(empty.getId(), true);
+            fail("table made read-only while it is written");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertFalse(Database.getCatalog().isReadOnly(empty.getId()));
+        bp.transactionComplete(tid);
+        Database.getCatalog().setReadOnly(empty.getId(), true);
+        assertTrue(Database.getCatalog().isReadOnly(empty.getId()));
+    }
+
+    /**
+     * An unknown table option in a catalog file is an error, and the table
+     * is not added.
+     */
+    @Test public void unknownTableOption() throws Exception {
+        File catalog = File.createTempFile("catalog", ".txt");
+        catalog.deleteOnExit();
+        FileWriter out = new FileWriter(catalog);
+        out.write("badoption (a int, b int) readwrite\n");
+        out.close();
+        try {
+            Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+            fail("unknown table option accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            Database.getCatalog().getTableId("badoption");
+            fail("table with an unknown option added");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadOnlyTableTest.class);
+    }
+}
@@ -338,6 +338,121 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestRecoverySkipsInstalledPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // committed pages are on disk already, recovery does not write them
+        doInsert(hf1, 1, 2);
+        crash();
+        assertEquals(0, Database.getLogFile().getRecoveryWrites());
+
+        // the page of an open transaction is written once
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3, 0);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+        insertRow(hf1, t, 4, 0);
+        Database.getBufferPool().flushAllPages();
+        crash();
+        assertEquals(1, Database.getLogFile().getRecoveryWrites());
+
+        // the undo has the LSN of the ABORT record written for t, the page
+        // holds it, so a second recovery skips the redo and the undo
+        crash();
+        assertEquals(0, Database.getLogFile().getRecoveryWrites());
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestPageLsnOfAnotherLog()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        assertTrue(((HeapPage) hf1.readPage(pid)).getLsn() != PageCodecs.NO_PAGE_LSN);
+
+        // *** Test:
+        // a log that starts over has a new id, the page LSNs of the old
+        // one are not known anymore
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(PageCodecs.NO_PAGE_LSN, ((HeapPage) hf1.readPage(pid)).getLsn());
+        look(hf1, t, 1, true);
+        t.commit();
+    }
+
+    @Test public void TestParallelRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, 4);
+
+        // *** Test:
+        // the pages of both tables are replayed by their own thread
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 5, 0);
+        insertRow(hf2, t, 6, 0);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRecoveryThreads(2);
+        Database.getLogFile().recover();
+        assertEquals(2, Database.getLogFile().getRecoveryWrites());
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 5, false);
+        look(hf2, t, 3, true);
+        look(hf2, t, 6, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        int emptySlots = ((HeapPage) hf1.readPage(pid)).getNumEmptySlots();
+
+        // *** Test:
+        // a checkpoint does not flush the dirty pages of the pool
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3, 0);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(emptySlots, ((HeapPage) hf1.readPage(pid)).getNumEmptySlots());
+
+        // *** Test:
+        // a page logged but not written at the checkpoint is in its dirty
+        // page table, and is redone from its record before the checkpoint
+        Page p = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY);
+        Database.getLogFile().logWrite(t.getId(), p.getBeforeImage(), p);
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logCommit(t.getId());
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
     @Test public void TestOpenCommitOpenCrash()
             throws IOException, DbException, TransactionAbortedException {
         setup();